@@ -1,9 +1,20 @@
 package com.jws1g18.myphrplus;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.crypto.Cipher;
 import javax.crypto.KeyGenerator;
@@ -12,9 +23,7 @@ import javax.crypto.SecretKey;
 import org.apache.commons.lang3.SerializationUtils;
 
 import co.junwei.bswabe.Bswabe;
-import co.junwei.bswabe.BswabeCph;
 import co.junwei.bswabe.BswabeCphKey;
-import co.junwei.bswabe.BswabeElementBoolean;
 import co.junwei.bswabe.BswabeMsk;
 import co.junwei.bswabe.BswabePrv;
 import co.junwei.bswabe.BswabePub;
@@ -22,6 +31,78 @@ import co.junwei.bswabe.SerializeUtils;
 import it.unisa.dia.gas.jpbc.Element;
 
 public class ABE {
+    /*
+     * Encryption, key generation and delegation use the power tables of a
+     * PreparedPub, as keys from KeyCache are. Any other key goes through Bswabe
+     * without tables, building them for a single call costs more than it saves.
+     */
+
+    // Computes the leaves of wide policies and batches of private keys, shared by every call
+    private static volatile ForkJoinPool leafPool;
+    // Offline parts of encryptions made ahead of time for cached public keys
+    private static volatile OfflineEncPool offlinePool;
+
+    /**
+     * Computes the leaves of wide policies and batches of private keys in
+     * parallel, replacing any existing pool. Everything is serial until this is
+     * called.
+     * 
+     * @param threads Number of threads, 0 for one per core, 1 to stay serial
+     */
+    public static synchronized void initLeafPool(int threads) {
+        shutdownLeafPool();
+        if (threads <= 0) {
+            threads = Runtime.getRuntime().availableProcessors();
+        }
+        if (threads > 1) {
+            leafPool = new ForkJoinPool(threads, DaemonThreads.forkJoin("abe-leaf"), null, false);
+        }
+    }
+
+    /**
+     * Shuts down the leaf pool, everything is serial afterwards
+     */
+    public static synchronized void shutdownLeafPool() {
+        if (leafPool != null) {
+            leafPool.shutdown();
+            leafPool = null;
+        }
+    }
+
+    /**
+     * Makes the offline part of encryptions ahead of time for cached public keys,
+     * replacing any existing pool. Every encryption is made whole until this is
+     * called.
+     * 
+     * @param perKey Entries to keep for each cached public key, 0 to disable
+     */
+    public static synchronized void initOfflinePool(int perKey) {
+        shutdownOfflinePool();
+        if (perKey > 0) {
+            offlinePool = new OfflineEncPool(perKey, () -> {
+                ForkJoinPool pool = leafPool;
+                return pool != null && !pool.isQuiescent();
+            });
+        }
+    }
+
+    /**
+     * Stops making the offline part of encryptions ahead of time
+     */
+    public static synchronized void shutdownOfflinePool() {
+        if (offlinePool != null) {
+            offlinePool.close();
+            offlinePool = null;
+        }
+    }
+
+    /**
+     * @return The offline encryption pool, or null if it is not enabled
+     */
+    public static OfflineEncPool getOfflinePool() {
+        return offlinePool;
+    }
+
     /**
      * Generates public key and master key
      * 
@@ -45,12 +126,53 @@ public class ABE {
     public static BswabePrv genPrivKey(BswabePub pub, BswabeMsk msk, String[] attr) {
         if(attr.length == 0){return null;}
         try {
-            return Bswabe.keygen(pub, msk, attr);
+            if (!(pub instanceof PreparedPub)) {
+                return Bswabe.keygen(pub, msk, attr);
+            }
+            return Cpabe.keygen((PreparedPub) pub, msk, attr);
         } catch (NoSuchAlgorithmException e) {
             return null;
         }
     }
 
+    /**
+     * Generates private keys for many users at once, computing the components of
+     * every key in parallel once {@link #initLeafPool(int)} is called
+     * 
+     * @param pub   Public key
+     * @param msk   Master key
+     * @param attrs Attribute array of each user
+     * @return Private keys in the same order as attrs, null for a user with no
+     *         attributes, or null if generation failed
+     */
+    public static List<BswabePrv> genPrivKeys(BswabePub pub, BswabeMsk msk, List<String[]> attrs) {
+        ArrayList<String[]> nonEmpty = new ArrayList<>(attrs.size());
+        for (String[] attr : attrs) {
+            if (attr.length > 0) {
+                nonEmpty.add(attr);
+            }
+        }
+        List<BswabePrv> generated;
+        try {
+            if (pub instanceof PreparedPub) {
+                generated = Cpabe.keygen((PreparedPub) pub, msk, nonEmpty, leafPool);
+            } else {
+                generated = new ArrayList<>(nonEmpty.size());
+                for (String[] attr : nonEmpty) {
+                    generated.add(Bswabe.keygen(pub, msk, attr));
+                }
+            }
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+        ArrayList<BswabePrv> keys = new ArrayList<>(attrs.size());
+        int next = 0;
+        for (String[] attr : attrs) {
+            keys.add(attr.length > 0 ? generated.get(next++) : null);
+        }
+        return keys;
+    }
+
     /**
      * Delegates a new private key given a private key and a subset of its
      * attributes
@@ -63,7 +185,10 @@ public class ABE {
     public static BswabePrv delegatePrivKey(BswabePub pub, BswabePrv prv, String[] attr) {
         if(attr.length == 0){return null;}
         try {
-            return Bswabe.delegate(pub, prv, attr);
+            if (!(pub instanceof PreparedPub)) {
+                return Bswabe.delegate(pub, prv, attr);
+            }
+            return Cpabe.delegate((PreparedPub) pub, prv, attr);
         } catch (NoSuchAlgorithmException | IllegalArgumentException e) {
             return null;
         }
@@ -81,74 +206,216 @@ public class ABE {
      * @throws Exception
      */
     public static byte[] encrypt(BswabePub pub, String policy, byte[] file) {
-        if(policy.isBlank()){
+        ByteArrayOutputStream out = new ByteArrayOutputStream(file.length + 1024);
+        if (!encrypt(pub, policy, new ByteArrayInputStream(file), out)) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decrypts a file given a private key that satifiys the encryption policy
+     * 
+     * @param pub  Public key
+     * @param prv  Private Key
+     * @param file Encrypted file
+     * @return Byte array of decrypted file, or Null if decryption failed
+     * @throws Exception Returns an exception if decryption fails
+     */
+    public static byte[] decrypt(BswabePub pub, BswabePrv prv, InputStream file) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!decrypt(pub, prv, file, out)) {
             return null;
         }
+        return out.toByteArray();
+    }
 
-        // Encrypt the file, returns the cipher text and the key
-        BswabeCphKey cphKey;
+    /**
+     * Encrypts a stream based upon the policy specified, using chunked AES so that
+     * memory use does not depend on the size of the file. The encrypted file is
+     * written to the output stream as an encrypted file container (see
+     * {@link EncFileHeader}), neither stream is closed. The leaves of wide
+     * policies are computed in parallel once {@link #initLeafPool(int)} is called,
+     * the part that does not depend on the policy is made ahead of time once
+     * {@link #initOfflinePool(int)} is called.
+     * 
+     * @param pub    Public key used to encrypt
+     * @param policy string with policy
+     * @param in     Stream containing file
+     * @param out    Stream to write the encrypted file to
+     * @return true if successful, false if the policy was invalid or encryption
+     *         failed
+     */
+    public static boolean encrypt(BswabePub pub, String policy, InputStream in, OutputStream out) {
+        if (policy.isBlank()) {
+            return false;
+        }
+
+        // Only cached keys are kept long enough to be worth topping up
+        OfflineEncPool offlines = pub instanceof PreparedPub ? offlinePool : null;
+        Cpabe.Offline offline = offlines != null ? offlines.take((PreparedPub) pub) : null;
+        try {
+            return encrypt(pub, policy, offline, in, out);
+        } finally {
+            if (offlines != null) {
+                offlines.done();
+            }
+        }
+    }
+
+    private static boolean encrypt(BswabePub pub, String policy, Cpabe.Offline offline, InputStream in,
+            OutputStream out) {
+        byte[] cph;
+        Element key;
         try {
-            cphKey = Bswabe.enc(pub, policy);
+            if (pub instanceof PreparedPub) {
+                Cpabe.CphKey cphKey = Cpabe.enc((PreparedPub) pub, policy, leafPool, offline);
+                if (cphKey == null) {
+                    return false;
+                }
+                cph = cphKey.cph;
+                key = cphKey.key;
+            } else {
+                BswabeCphKey cphKey = Bswabe.enc(pub, policy);
+                if (cphKey == null) {
+                    return false;
+                }
+                cph = SerializeUtils.bswabeCphSerialize(cphKey.cph);
+                key = cphKey.key;
+            }
         } catch (Exception e) {
-            return null;
+            return false;
         }
-        BswabeCph cph = cphKey.cph;
-        Element key = cphKey.key;
 
-        // Returns null if an error occured during encryption
-        if (cph == null) {
-            return null;
+        try {
+            // Write ABE ciphertext first so the key can be recovered before the payload is read
+            new EncFileHeader(cph).write(out);
+            ChunkedAES.encrypt(key, in, out);
+            out.flush();
+            return true;
+        } catch (Exception e) {
+            return false;
         }
+    }
+
+    /**
+     * Encrypts a channel based upon the policy specified, see
+     * {@link #encrypt(BswabePub, String, InputStream, OutputStream)}
+     */
+    public static boolean encrypt(BswabePub pub, String policy, ReadableByteChannel in, WritableByteChannel out) {
+        return encrypt(pub, policy, Channels.newInputStream(in), Channels.newOutputStream(out));
+    }
 
-        // Use ciphertext as symmetric key for hybrid encryption (ABE only encrypts one
-        // group element)
-        byte[] aesBuf;
+    /**
+     * Decrypts a stream given a private key that satisfies the encryption policy.
+     * Reads both encrypted file containers and legacy serialized EncFiles. The
+     * decrypted file is written to the output stream, neither stream is closed.
+     * 
+     * @param pub Public key
+     * @param prv Private key
+     * @param in  Stream containing the encrypted file
+     * @param out Stream to write the decrypted file to
+     * @return true if successful, false if the key does not satisfy the policy or
+     *         the file has been tampered with
+     */
+    public static boolean decrypt(BswabePub pub, BswabePrv prv, InputStream in, OutputStream out) {
         try {
-            aesBuf = aes(key, file, Cipher.ENCRYPT_MODE);
+            BufferedInputStream bufIn = new BufferedInputStream(in);
+            bufIn.mark(EncFileHeader.MAGIC.length);
+            byte[] magic = bufIn.readNBytes(EncFileHeader.MAGIC.length);
+            bufIn.reset();
+            if (!EncFileHeader.isContainer(magic)) {
+                return decryptLegacy(pub, prv, bufIn, out);
+            }
+
+            EncFileHeader header = EncFileHeader.read(bufIn);
+            Element key = decryptKey(pub, prv, header);
+            if (key == null) {
+                return false;
+            }
+            ChunkedAES.decrypt(key, bufIn, out);
+            out.flush();
+            return true;
         } catch (Exception e) {
-            return null;
+            return false;
         }
+    }
 
-        // Store
-        byte[] cphBuf = SerializeUtils.bswabeCphSerialize(cph);
-        byte[] encFile = writeEncFile(aesBuf, cphBuf);
-        return encFile;
+    /**
+     * Decrypts a channel, see
+     * {@link #decrypt(BswabePub, BswabePrv, InputStream, OutputStream)}
+     */
+    public static boolean decrypt(BswabePub pub, BswabePrv prv, ReadableByteChannel in, WritableByteChannel out) {
+        return decrypt(pub, prv, Channels.newInputStream(in), Channels.newOutputStream(out));
     }
 
     /**
-     * Decrypts a file given a private key that satifiys the encryption policy
+     * Decrypts an encrypted file container held in a buffer, such as a memory
+     * mapped file. The buffer is read from its current position.
      * 
-     * @param pub  Public key
-     * @param prv  Private Key
-     * @param file Encrypted file
-     * @return Byte array of decrypted file, or Null if decryption failed
-     * @throws Exception Returns an exception if decryption fails
+     * @param pub Public key
+     * @param prv Private key
+     * @param buf Buffer containing the encrypted file
+     * @param out Stream to write the decrypted file to
+     * @return true if successful, false if decryption failed
      */
-    public static byte[] decrypt(BswabePub pub, BswabePrv prv, InputStream file) {
+    public static boolean decrypt(BswabePub pub, BswabePrv prv, ByteBuffer buf, OutputStream out) {
+        try {
+            EncFileHeader header = EncFileHeader.read(buf);
+            Element key = decryptKey(pub, prv, header);
+            if (key == null) {
+                return false;
+            }
+            ChunkedAES.decrypt(key, new ByteBufferInputStream(buf), out);
+            out.flush();
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * Recovers the symmetric key of an encrypted file from its header. Only the
+     * cheapest set of leaves that satisfies the policy is paired, see
+     * {@link Cpabe#dec(BswabePub, BswabePrv, byte[], ForkJoinPool)}.
+     * 
+     * @param pub    Public key
+     * @param prv    Private key
+     * @param header Encrypted file header
+     * @return Key used to encrypt the payload, or null if the private key does not
+     *         satisfy the policy
+     */
+    public static Element decryptKey(BswabePub pub, BswabePrv prv, EncFileHeader header) {
+        return Cpabe.dec(pub, prv, header.getCphBuf(), leafPool);
+    }
+
+    /**
+     * Decrypts a legacy file that was stored as a serialized EncFile
+     */
+    private static boolean decryptLegacy(BswabePub pub, BswabePrv prv, InputStream in, OutputStream out)
+            throws Exception {
         // Read file
-        EncFile tmp = readEncFile(file);
+        EncFile tmp = readEncFile(in);
+        if (tmp == null) {
+            return false;
+        }
         byte[] aesBuf = tmp.aesBuf;
         byte[] cphBuf = tmp.cphBuf;
 
-        // Read cipher text
-        BswabeCph cph = SerializeUtils.bswabeCphUnserialize(pub, cphBuf);
         // Decrypt cipher text
-        BswabeElementBoolean beb = Bswabe.dec(pub, prv, cph);
-        if (beb.b) {
-            // Decrypt file using cipher text as symmetric key
-            try {
-                return aes(beb.e, aesBuf, Cipher.DECRYPT_MODE);
-            } catch (Exception e) {
-                return null;
-            }
-        } else {
-            return null;
+        Element key = Cpabe.dec(pub, prv, cphBuf, leafPool);
+        if (key == null) {
+            return false;
         }
+        // Decrypt file using cipher text as symmetric key
+        out.write(aes(key, aesBuf, Cipher.DECRYPT_MODE));
+        out.flush();
+        return true;
     }
 
     /**
      * Encrypts or Decrypts a file using AES, generating an AES Key using a ABE
-     * Ciphertext as a seed
+     * Ciphertext as a seed. Only used for legacy files.
      * 
      * @param key     ABE Ciphertext
      * @param file    File to be encrypted
@@ -170,16 +437,40 @@ public class ABE {
         return cipher.doFinal(file);
     }
 
-    private static byte[] writeEncFile(byte[] aesBuf, byte[] cphBuf) {
-        EncFile file = new EncFile(aesBuf, cphBuf);
-        return SerializationUtils.serialize(file);
-    }
-
     private static EncFile readEncFile(InputStream iStream) {
         try {
             return (EncFile) SerializationUtils.deserialize(iStream.readAllBytes());
-        } catch (IOException e) {
+        } catch (IOException | RuntimeException e) {
             return null;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Input stream over the remaining bytes of a buffer
+     */
+    static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buf.remaining());
+            buf.get(b, off, len);
+            return len;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package com.jws1g18.myphrplus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.WriteBatch;
+import com.jws1g18.myphrplus.DTOS.User;
+
+import org.slf4j.Logger;
+
+/**
+ * Deletes accounts in the background.
+ *
+ * A job releases the users files in parallel, removes the released references
+ * from the user in one write per chunk, deletes orphaned files from cloud
+ * storage in batches and then deletes the user. Whether the account can be deleted
+ * at all is checked before the job is created and again before it releases anything.
+ * Progress is kept in deletionJobs/{uid}: the users own files array is what is left to remove, and
+ * deletionJobs/{uid}/blobs holds files removed from firestore but not yet from
+ * cloud storage, and deletionJobs/{uid}/released holds files released but not
+ * yet removed from the user. A job that stops part way, for example on a restart, is
+ * picked up again by any instance once its lease has expired.
+ */
+public class AccountDeletion {
+    static final int CHUNK_SIZE = 100;
+    static final int MAX_ATTEMPTS = 3;
+    static final int MAX_RUNNING_JOBS = 2;
+    static final long LEASE_MS = 2 * 60 * 1000;
+
+    private final GCPFireBase fireBase;
+    private final GCPCloudStorage cloudStorage;
+    private final Logger logger;
+    private final Firestore db;
+    private final CollectionReference jobs;
+    private final String instanceId = UUID.randomUUID().toString();
+    private final ExecutorService jobPool;
+    private final ExecutorService filePool;
+    private final ScheduledExecutorService sweeper;
+    // Jobs running on this instance
+    private final Set<String> running = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param fireBase
+     * @param cloudStorage
+     * @param logger
+     * @param concurrency Maximum number of file references removed at once
+     */
+    public AccountDeletion(GCPFireBase fireBase, GCPCloudStorage cloudStorage, Logger logger, int concurrency) {
+        this.fireBase = fireBase;
+        this.cloudStorage = cloudStorage;
+        this.logger = logger;
+        this.db = fireBase.getDB();
+        this.jobs = this.db.collection("deletionJobs");
+        this.jobPool = Executors.newFixedThreadPool(MAX_RUNNING_JOBS, DaemonThreads.named("account-deletion"));
+        this.filePool = Executors.newFixedThreadPool(concurrency, DaemonThreads.named("account-deletion-files"));
+        this.sweeper = Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("account-deletion-sweeper"));
+    }
+
+    /**
+     * Starts deleting a users account, or resumes their job if one already exists
+     * @param user User object of the user to delete
+     * @return true if the job was started
+     */
+    public FunctionResponse start(User user) {
+        // Checked before the job exists, files are released long before the user is deleted
+        FunctionResponse deletable = fireBase.canDeleteUser(user.uid);
+        if (!deletable.successful()) {
+            return deletable;
+        }
+        DocumentReference jobRef = jobs.document(user.uid);
+        Map<String, Object> job = new HashMap<>();
+        job.put("status", "running");
+        job.put("bucketName", user.bucketName);
+        job.put("totalFiles", user.files == null ? 0 : user.files.size());
+        job.put("deletedFiles", 0);
+        job.put("started", Timestamp.now());
+        try {
+            this.db.runTransaction(transaction -> {
+                DocumentSnapshot existing = transaction.get(jobRef).get();
+                if (!existing.exists() || "complete".equals(existing.getString("status"))) {
+                    transaction.set(jobRef, job);
+                } else {
+                    // Retry a failed job from where it stopped
+                    transaction.update(jobRef, "status", "running", "error", FieldValue.delete());
+                }
+                return null;
+            }).get();
+        } catch (InterruptedException | ExecutionException e) {
+            logger.error("Could not create deletion job for " + user.uid, e);
+            return new FunctionResponse(false, "Could not start account deletion");
+        }
+        submit(user.uid);
+        return new FunctionResponse(true, "Account deletion started");
+    }
+
+    /**
+     * Resumes jobs left by stopped instances now and whenever their leases expire
+     */
+    public void scheduleResume() {
+        sweeper.scheduleWithFixedDelay(this::resume, 0, LEASE_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Resumes every running job whose lease has expired
+     */
+    public void resume() {
+        try {
+            for (QueryDocumentSnapshot doc : jobs.whereEqualTo("status", "running").get().get().getDocuments()) {
+                logger.info("Resuming deletion job for " + doc.getId());
+                submit(doc.getId());
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            logger.error("Could not find deletion jobs to resume", e);
+        }
+    }
+
+    /**
+     * Gets the progress of a users deletion job
+     * @param uid User ID
+     * @return JSON containing the status, total files and files deleted so far
+     */
+    public FunctionResponse getStatus(String uid) {
+        DocumentSnapshot job;
+        try {
+            job = jobs.document(uid).get().get();
+        } catch (InterruptedException | ExecutionException e) {
+            logger.error("Could not get deletion job for " + uid, e);
+            return new FunctionResponse(false, "Could not get deletion status");
+        }
+        if (!job.exists()) {
+            return new FunctionResponse(false, "No account deletion in progress");
+        }
+        ObjectMapper mapper = new ObjectMapper();
+        ObjectNode node = mapper.createObjectNode();
+        node.put("status", job.getString("status"));
+        node.put("totalFiles", job.getLong("totalFiles"));
+        node.put("deletedFiles", job.getLong("deletedFiles"));
+        if (job.contains("error")) {
+            node.put("error", job.getString("error"));
+        }
+        try {
+            return new FunctionResponse(true, mapper.writer().writeValueAsString(node));
+        } catch (JsonProcessingException e) {
+            logger.error("Could not process JSON", e);
+            return new FunctionResponse(false, "Couldn't process JSON");
+        }
+    }
+
+    /**
+     * Stops running jobs, they are resumed once their lease expires
+     */
+    public void shutdown() {
+        sweeper.shutdownNow();
+        jobPool.shutdownNow();
+        filePool.shutdownNow();
+    }
+
+    private void submit(String uid) {
+        if (!running.add(uid)) {
+            return;
+        }
+        jobPool.submit(() -> {
+            try {
+                run(uid);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                logger.error("Deletion job for " + uid + " failed", e);
+                fail(uid, "Account deletion failed");
+            } finally {
+                running.remove(uid);
+            }
+        });
+    }
+
+    private void run(String uid) throws InterruptedException, ExecutionException {
+        DocumentReference jobRef = jobs.document(uid);
+        if (!claim(jobRef)) {
+            return;
+        }
+        String bucketName = jobRef.get().get().getString("bucketName");
+
+        // The account may have become undeletable since the job was started
+        FunctionResponse deletable = fireBase.canDeleteUser(uid);
+        if (!deletable.successful()) {
+            fail(uid, deletable.getMessage());
+            return;
+        }
+
+        // Files left from a previous run
+        if (!deleteBlobs(jobRef, bucketName)) {
+            fail(uid, "Could not delete files from cloud storage");
+            return;
+        }
+
+        int failedAttempts = 0;
+        while (true) {
+            DocumentSnapshot userDoc = this.db.collection("users").document(uid).get().get();
+            List<String> files = userDoc.exists() ? (List<String>) userDoc.get("files") : null;
+            if (files == null || files.isEmpty()) {
+                break;
+            }
+            List<String> chunk = files.subList(0, Math.min(CHUNK_SIZE, files.size()));
+            List<String> released = releaseFiles(uid, chunk, jobRef);
+            if (released.size() < chunk.size() && ++failedAttempts >= MAX_ATTEMPTS) {
+                fail(uid, "Could not remove all files");
+                return;
+            }
+            if (!released.isEmpty()) {
+                Map<String, Object> progress = new HashMap<>();
+                progress.put("deletedFiles", FieldValue.increment(released.size()));
+                progress.put("leaseExpires", leaseExpiry());
+                fireBase.removeReleasedFiles(uid, released, jobRef, progress);
+            }
+            if (!deleteBlobs(jobRef, bucketName)) {
+                fail(uid, "Could not delete files from cloud storage");
+                return;
+            }
+        }
+
+        FunctionResponse deleteResponse = fireBase.deleteUser(uid);
+        if (!deleteResponse.successful()) {
+            fail(uid, deleteResponse.getMessage());
+            return;
+        }
+        jobRef.update("status", "complete", "leaseOwner", FieldValue.delete(), "leaseExpires", FieldValue.delete()).get();
+        logger.info("User: " + uid + " successfully deleted");
+    }
+
+    /**
+     * Takes the lease on a job so only one instance runs it
+     * @return true if this instance now holds the lease
+     */
+    private boolean claim(DocumentReference jobRef) throws InterruptedException, ExecutionException {
+        return this.db.runTransaction(transaction -> {
+            DocumentSnapshot job = transaction.get(jobRef).get();
+            if (!job.exists() || !"running".equals(job.getString("status"))) {
+                return false;
+            }
+            Timestamp expires = job.getTimestamp("leaseExpires");
+            String owner = job.getString("leaseOwner");
+            if (expires != null && !instanceId.equals(owner) && expires.compareTo(Timestamp.now()) > 0) {
+                return false;
+            }
+            transaction.update(jobRef, "leaseOwner", instanceId, "leaseExpires", leaseExpiry());
+            return true;
+        }).get();
+    }
+
+    /**
+     * Releases file references from a user in parallel. Each release only writes the
+     * file and the job, the references are removed from the user afterwards in one write.
+     * @return References released
+     */
+    private List<String> releaseFiles(String uid, List<String> fileRefs, DocumentReference jobRef)
+            throws InterruptedException {
+        List<String> released = Collections.synchronizedList(new ArrayList<>(fileRefs.size()));
+        List<Future<?>> futures = new ArrayList<>(fileRefs.size());
+        for (String fileRef : fileRefs) {
+            futures.add(filePool.submit(() -> {
+                FunctionResponse response = fireBase.releaseFile(uid, fileRef, jobRef);
+                if (response.successful()) {
+                    released.add(fileRef);
+                } else {
+                    logger.error("Could not remove file: " + fileRef + " from user: " + uid);
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                logger.error("Removing file from user: " + uid + " failed", e);
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Deletes the files recorded under a job from cloud storage, then removes the records
+     * @return true if every recorded file was deleted
+     */
+    private boolean deleteBlobs(DocumentReference jobRef, String bucketName)
+            throws InterruptedException, ExecutionException {
+        List<QueryDocumentSnapshot> blobs = jobRef.collection("blobs").get().get().getDocuments();
+        for (int i = 0; i < blobs.size(); i += CHUNK_SIZE) {
+            List<QueryDocumentSnapshot> chunk = blobs.subList(i, Math.min(i + CHUNK_SIZE, blobs.size()));
+            List<String> paths = new ArrayList<>(chunk.size());
+            for (QueryDocumentSnapshot blob : chunk) {
+                paths.add(blob.getString("path"));
+            }
+            if (!cloudStorage.deleteFiles(bucketName, paths)) {
+                return false;
+            }
+            WriteBatch batch = this.db.batch();
+            for (QueryDocumentSnapshot blob : chunk) {
+                batch.delete(blob.getReference());
+            }
+            batch.commit().get();
+        }
+        return true;
+    }
+
+    private void fail(String uid, String error) {
+        try {
+            jobs.document(uid).update("status", "failed", "error", error, "leaseOwner", FieldValue.delete(),
+                    "leaseExpires", FieldValue.delete()).get();
+        } catch (InterruptedException | ExecutionException e) {
+            logger.error("Could not record failed deletion job for " + uid, e);
+        }
+    }
+
+    private static Timestamp leaseExpiry() {
+        return Timestamp.ofTimeMicroseconds((System.currentTimeMillis() + LEASE_MS) * 1000);
+    }
+}
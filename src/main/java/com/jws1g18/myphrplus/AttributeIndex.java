@@ -0,0 +1,361 @@
+package com.jws1g18.myphrplus;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.WriteBatch;
+
+import org.slf4j.Logger;
+
+/**
+ * In memory index of the users in each bucket by attribute, so the users with a
+ * set of attributes are found by intersecting sets rather than reading every user
+ * in the bucket.
+ *
+ * A bucket is loaded with one query of its users attributes the first time it is
+ * needed. Attribute changes are recorded in attributeIndex/{bucket}/changes, and
+ * every instance with the bucket loaded listens for changes made after it loaded
+ * it. Users are numbered within a bucket and each attribute holds a BitSet of the
+ * numbers of the users that have it.
+ *
+ * If a change cannot be recorded, the version on attributeIndex/{bucket} is
+ * bumped instead and every instance with the bucket loaded loads it again.
+ */
+public class AttributeIndex {
+    static final int MAX_BUCKETS = 16;
+    // Changes older than this are removed when a bucket is loaded
+    static final long CHANGE_RETENTION_MS = 60 * 60 * 1000;
+    static final int MAX_ATTEMPTS = 3;
+    static final long RETRY_DELAY_MS = 200;
+
+    private final Firestore db;
+    private final Logger logger;
+
+    // Access ordered so iteration starts at the least recently used bucket
+    private final LinkedHashMap<String, Bucket> buckets = new LinkedHashMap<>(16, 0.75f, true);
+
+    public AttributeIndex(Firestore db, Logger logger) {
+        this.db = db;
+        this.logger = logger;
+    }
+
+    /**
+     * Finds the users in a bucket that have every one of the given attributes
+     * @param bucketName Bucket to search
+     * @param attributes Attributes users must have
+     * @return User IDs
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public Set<String> find(String bucketName, Collection<String> attributes)
+            throws InterruptedException, ExecutionException {
+        Bucket bucket;
+        synchronized (buckets) {
+            bucket = buckets.get(bucketName);
+            if (bucket == null) {
+                bucket = new Bucket(bucketName);
+                buckets.put(bucketName, bucket);
+                evict(bucketName);
+            }
+        }
+        bucket.load();
+        return bucket.find(attributes);
+    }
+
+    /**
+     * Records a change to a users attributes, for use after the user has been
+     * written to firestore. If the change cannot be recorded the bucket is
+     * invalidated on every instance instead.
+     * @param bucketName Bucket the user is registered to
+     * @param uid User ID
+     * @param attributes The users attributes, or null if the user has been deleted
+     * @throws InterruptedException
+     * @throws ExecutionException If neither the change nor the invalidation could be
+     * written, other instances may then miss the change until they next load the bucket
+     */
+    public void changed(String bucketName, String uid, List<String> attributes)
+            throws InterruptedException, ExecutionException {
+        Map<String, Object> change = new HashMap<>();
+        change.put("uid", uid);
+        change.put("attributes", attributes);
+        change.put("time", FieldValue.serverTimestamp());
+        DocumentReference changeRef = changes(bucketName).document();
+        Timestamp time = null;
+        for (int attempt = 1; time == null; attempt++) {
+            try {
+                time = changeRef.set(change).get().getUpdateTime();
+            } catch (ExecutionException e) {
+                logger.error("Could not record attribute change for " + uid + ", attempt " + attempt, e);
+                if (attempt == MAX_ATTEMPTS) {
+                    invalidate(bucketName);
+                    return;
+                }
+                Thread.sleep(RETRY_DELAY_MS << (attempt - 1));
+            }
+        }
+        Bucket bucket;
+        synchronized (buckets) {
+            bucket = buckets.get(bucketName);
+        }
+        if (bucket != null) {
+            bucket.apply(uid, attributes, time);
+        }
+    }
+
+    /**
+     * Unloads a bucket here and bumps its version so other instances unload it too
+     */
+    private void invalidate(String bucketName) throws InterruptedException, ExecutionException {
+        Bucket bucket;
+        synchronized (buckets) {
+            bucket = buckets.get(bucketName);
+        }
+        if (bucket != null) {
+            remove(bucket);
+        }
+        bucketDoc(bucketName).set(Map.of("version", FieldValue.increment(1)), SetOptions.merge()).get();
+    }
+
+    /**
+     * Stops listening for changes and empties the index
+     */
+    public void clear() {
+        synchronized (buckets) {
+            for (Bucket bucket : buckets.values()) {
+                bucket.close();
+            }
+            buckets.clear();
+        }
+    }
+
+    /**
+     * Unloads least recently used buckets until within bounds, never the bucket
+     * just added
+     */
+    private void evict(String keep) {
+        Iterator<Map.Entry<String, Bucket>> it = buckets.entrySet().iterator();
+        while (buckets.size() > MAX_BUCKETS && it.hasNext()) {
+            Map.Entry<String, Bucket> eldest = it.next();
+            if (eldest.getKey().equals(keep)) {
+                continue;
+            }
+            eldest.getValue().close();
+            it.remove();
+        }
+    }
+
+    private void remove(Bucket bucket) {
+        synchronized (buckets) {
+            if (buckets.get(bucket.name) == bucket) {
+                buckets.remove(bucket.name);
+            }
+        }
+        bucket.close();
+    }
+
+    private DocumentReference bucketDoc(String bucketName) {
+        return this.db.collection("attributeIndex").document(bucketName);
+    }
+
+    private CollectionReference changes(String bucketName) {
+        return bucketDoc(bucketName).collection("changes");
+    }
+
+    /**
+     * Removes changes that every loaded bucket has already seen
+     */
+    private void prune(String bucketName, Timestamp readTime) {
+        Timestamp before = Timestamp.ofTimeMicroseconds(
+                readTime.getSeconds() * 1000000 + readTime.getNanos() / 1000 - CHANGE_RETENTION_MS * 1000);
+        try {
+            List<QueryDocumentSnapshot> old = changes(bucketName).whereLessThan("time", before)
+                    .limit(GCPFireBase.WRITE_BATCH_SIZE).get().get().getDocuments();
+            if (old.isEmpty()) {
+                return;
+            }
+            WriteBatch batch = this.db.batch();
+            for (QueryDocumentSnapshot doc : old) {
+                batch.delete(doc.getReference());
+            }
+            batch.commit().get();
+        } catch (InterruptedException | ExecutionException e) {
+            logger.error("Could not remove old attribute changes for " + bucketName, e);
+        }
+    }
+
+    class Bucket {
+        final String name;
+        // User number to user ID
+        final List<String> uids = new ArrayList<>();
+        final Map<String, Member> members = new HashMap<>();
+        final Map<String, BitSet> byAttribute = new HashMap<>();
+        boolean loaded = false;
+        // Set once the bucket has been evicted or removed, it must not listen after that
+        boolean closed = false;
+        ListenerRegistration registration;
+        ListenerRegistration versionRegistration;
+
+        Bucket(String name) {
+            this.name = name;
+        }
+
+        synchronized void load() throws InterruptedException, ExecutionException {
+            if (loaded) {
+                return;
+            }
+            // Read first so a bump made while loading is not missed
+            Long version = bucketDoc(name).get().get().getLong("version");
+            QuerySnapshot snapshot = db.collection("users").whereEqualTo("bucketName", name)
+                    .select("attributes").get().get();
+            Timestamp readTime = snapshot.getReadTime();
+            for (QueryDocumentSnapshot doc : snapshot.getDocuments()) {
+                apply(doc.getId(), (List<String>) doc.get("attributes"), readTime);
+            }
+            loaded = true;
+            if (closed) {
+                // Evicted before it was loaded, still answers the find that loaded it but
+                // nothing would remove its listeners. close() holds this lock so cannot
+                // run between this check and the listeners being added
+                return;
+            }
+
+            // Only changes the query did not see are needed
+            registration = changes(name).whereGreaterThan("time", readTime).addSnapshotListener((update, error) -> {
+                if (error != null) {
+                    logger.error("Attribute change listener for " + name + " failed", error);
+                    // Loaded again from scratch next time it is needed
+                    remove(this);
+                    return;
+                }
+                List<QueryDocumentSnapshot> added = new ArrayList<>();
+                for (DocumentChange change : update.getDocumentChanges()) {
+                    if (change.getType() == DocumentChange.Type.ADDED) {
+                        added.add(change.getDocument());
+                    }
+                }
+                added.sort(Comparator.comparing(doc -> doc.getTimestamp("time")));
+                for (QueryDocumentSnapshot doc : added) {
+                    apply(doc.getString("uid"), (List<String>) doc.get("attributes"), doc.getTimestamp("time"));
+                }
+            });
+            versionRegistration = bucketDoc(name).addSnapshotListener((doc, error) -> {
+                if (error != null || !Objects.equals(version, doc.getLong("version"))) {
+                    // A change was not recorded, load again from scratch next time it is needed
+                    remove(this);
+                }
+            });
+            prune(name, readTime);
+        }
+
+        /**
+         * Sets a users attributes, unless a later change has already been applied
+         */
+        synchronized void apply(String uid, List<String> attributes, Timestamp time) {
+            Member member = members.get(uid);
+            if (member == null) {
+                if (attributes == null) {
+                    return;
+                }
+                member = new Member(uids.size());
+                uids.add(uid);
+                members.put(uid, member);
+            } else if (member.changed != null && time.compareTo(member.changed) <= 0) {
+                return;
+            }
+            if (member.attributes != null) {
+                for (String attr : member.attributes) {
+                    BitSet set = byAttribute.get(attr);
+                    if (set != null) {
+                        set.clear(member.id);
+                    }
+                }
+            }
+            // Deleted users are kept without attributes so an older change cannot add them back
+            member.attributes = attributes == null ? null : new ArrayList<>(attributes);
+            member.changed = time;
+            if (attributes != null) {
+                for (String attr : attributes) {
+                    byAttribute.computeIfAbsent(attr, k -> new BitSet()).set(member.id);
+                }
+            }
+        }
+
+        synchronized Set<String> find(Collection<String> attributes) {
+            BitSet result = null;
+            for (String attr : attributes) {
+                BitSet set = byAttribute.get(attr);
+                if (set == null) {
+                    return new LinkedHashSet<>();
+                }
+                if (result == null) {
+                    result = (BitSet) set.clone();
+                } else {
+                    result.and(set);
+                }
+            }
+            Set<String> found = new LinkedHashSet<>();
+            if (result == null) {
+                // No attributes given, every user matches
+                for (Map.Entry<String, Member> entry : members.entrySet()) {
+                    if (entry.getValue().attributes != null) {
+                        found.add(entry.getKey());
+                    }
+                }
+                return found;
+            }
+            for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+                found.add(uids.get(i));
+            }
+            return found;
+        }
+
+        void close() {
+            ListenerRegistration current;
+            ListenerRegistration currentVersion;
+            synchronized (this) {
+                closed = true;
+                current = registration;
+                currentVersion = versionRegistration;
+                registration = null;
+                versionRegistration = null;
+            }
+            if (current != null) {
+                current.remove();
+            }
+            if (currentVersion != null) {
+                currentVersion.remove();
+            }
+        }
+    }
+
+    private static class Member {
+        final int id;
+        List<String> attributes;
+        Timestamp changed;
+
+        Member(int id) {
+            this.id = id;
+        }
+    }
+}
@@ -0,0 +1,313 @@
+package com.jws1g18.myphrplus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+
+/**
+ * Local disk cache of encrypted objects from cloud storage. Cached files are
+ * still ABE encrypted, so they are no more sensitive than the objects in the
+ * bucket.
+ *
+ * Objects are cached by bucket, name and generation, so a replaced object is
+ * never served from an old copy. The cache is bounded by size and evicts the
+ * least recently used objects. Reads are memory mapped. Objects that are not
+ * cached are fetched in the background, the request that missed reads from
+ * cloud storage as normal.
+ */
+public class BlobCache {
+    // Objects larger than this fraction of the cache are not cached
+    static final int MAX_OBJECT_FRACTION = 8;
+    static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * Writes an object to a cache file
+     */
+    public interface Source {
+        /**
+         * @param out Channel to write the whole object to
+         * @throws IOException
+         */
+        void writeTo(FileChannel out) throws IOException;
+    }
+
+    private final Path dir;
+    private final long maxBytes;
+    private final Logger logger;
+
+    // Access ordered so iteration starts at the least recently used object
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long totalBytes = 0;
+
+    private final Set<String> filling = ConcurrentHashMap.newKeySet();
+    private final ExecutorService filler;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong fills = new AtomicLong();
+    private final AtomicLong fillFailures = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Opens a cache, keeping any objects already in the directory
+     * @param dir Directory to keep cached objects in
+     * @param maxBytes Most bytes of objects to keep
+     * @param logger
+     * @throws IOException If the directory could not be created or read
+     */
+    public BlobCache(Path dir, long maxBytes, Logger logger) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.logger = logger;
+        this.filler = Executors.newSingleThreadExecutor(DaemonThreads.named("blob-cache-filler"));
+        Files.createDirectories(dir);
+        load();
+    }
+
+    /**
+     * Gets a cached object
+     * @param bucketName Bucket of the object
+     * @param objectName Name of the object
+     * @param generation Generation of the object
+     * @return Read only buffer over the object, or null if it is not cached
+     */
+    public ByteBuffer get(String bucketName, String objectName, long generation) {
+        String key = key(bucketName, objectName, generation);
+        Long size;
+        synchronized (entries) {
+            size = entries.get(key);
+        }
+        if (size != null) {
+            try (FileChannel channel = FileChannel.open(dir.resolve(key), StandardOpenOption.READ)) {
+                // The mapping stays valid if the file is evicted while it is being read
+                ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                hits.incrementAndGet();
+                return buf;
+            } catch (IOException e) {
+                logger.error("Could not read cached object " + objectName, e);
+                remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches an object in the background, unless it is already being cached or is
+     * too large
+     * @param bucketName Bucket of the object
+     * @param objectName Name of the object
+     * @param generation Generation of the object
+     * @param size Size of the object in bytes
+     * @param source Writes the object
+     */
+    public void fill(String bucketName, String objectName, long generation, long size, Source source) {
+        if (size > maxBytes / MAX_OBJECT_FRACTION) {
+            return;
+        }
+        String key = key(bucketName, objectName, generation);
+        if (!filling.add(key)) {
+            return;
+        }
+        try {
+            filler.submit(() -> {
+                try {
+                    store(key, size, source);
+                    fills.incrementAndGet();
+                } catch (IOException | RuntimeException e) {
+                    fillFailures.incrementAndGet();
+                    logger.error("Could not cache object " + objectName, e);
+                } finally {
+                    filling.remove(key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            filling.remove(key);
+        }
+    }
+
+    /**
+     * Removes every cached generation of an object, for use when it is deleted
+     * @param bucketName Bucket of the object
+     * @param objectName Name of the object
+     */
+    public void remove(String bucketName, String objectName) {
+        String prefix = objectKey(bucketName, objectName);
+        List<String> keys = new ArrayList<>();
+        synchronized (entries) {
+            for (String key : entries.keySet()) {
+                if (key.startsWith(prefix)) {
+                    keys.add(key);
+                }
+            }
+        }
+        for (String key : keys) {
+            remove(key);
+        }
+    }
+
+    /**
+     * @return Hit, miss and size counts for sizing the cache
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRatio", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        stats.put("fills", fills.get());
+        stats.put("fillFailures", fillFailures.get());
+        stats.put("evictions", evictions.get());
+        synchronized (entries) {
+            stats.put("objects", entries.size());
+            stats.put("bytes", totalBytes);
+        }
+        stats.put("maxBytes", maxBytes);
+        return stats;
+    }
+
+    /**
+     * Stops caching objects in the background, cached objects are kept for the next start
+     */
+    public void close() {
+        filler.shutdownNow();
+    }
+
+    private void store(String key, long size, Source source) throws IOException {
+        Path tmp = dir.resolve(key + TMP_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                source.writeTo(channel);
+                if (channel.size() != size) {
+                    throw new IOException("Cached object is " + channel.size() + " bytes, expected " + size);
+                }
+            }
+            // Only complete objects ever appear under their key
+            Files.move(tmp, dir.resolve(key), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        synchronized (entries) {
+            Long previous = entries.put(key, size);
+            totalBytes += size - (previous == null ? 0 : previous);
+        }
+        evict();
+    }
+
+    /**
+     * Removes least recently used objects until within bounds
+     */
+    private void evict() {
+        List<String> evicted = new ArrayList<>();
+        synchronized (entries) {
+            Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+            while (totalBytes > maxBytes && it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                totalBytes -= eldest.getValue();
+                evicted.add(eldest.getKey());
+                it.remove();
+            }
+        }
+        for (String key : evicted) {
+            evictions.incrementAndGet();
+            delete(key);
+        }
+    }
+
+    private void remove(String key) {
+        synchronized (entries) {
+            Long size = entries.remove(key);
+            if (size == null) {
+                return;
+            }
+            totalBytes -= size;
+        }
+        delete(key);
+    }
+
+    private void delete(String key) {
+        try {
+            Files.deleteIfExists(dir.resolve(key));
+        } catch (IOException e) {
+            logger.error("Could not delete cached object " + key, e);
+        }
+    }
+
+    /**
+     * Indexes objects cached before a restart, oldest first so they are evicted first
+     */
+    private void load() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                if (file.getFileName().toString().endsWith(TMP_SUFFIX)) {
+                    // Left by a fill that did not finish
+                    Files.deleteIfExists(file);
+                } else if (Files.isRegularFile(file)) {
+                    files.add(file);
+                }
+            }
+        }
+        files.sort(Comparator.comparing(file -> {
+            try {
+                return Files.getLastModifiedTime(file);
+            } catch (IOException e) {
+                return null;
+            }
+        }, Comparator.nullsFirst(Comparator.naturalOrder())));
+        synchronized (entries) {
+            for (Path file : files) {
+                long size = Files.size(file);
+                entries.put(file.getFileName().toString(), size);
+                totalBytes += size;
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Cache file name of an object generation, the object part is hashed so any
+     * object name is a valid file name
+     */
+    private static String key(String bucketName, String objectName, long generation) {
+        return objectKey(bucketName, objectName) + generation;
+    }
+
+    private static String objectKey(String bucketName, String objectName) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] hash = digest.digest((bucketName + "/" + objectName).getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2 + 1);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.append('-').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package com.jws1g18.myphrplus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Storage of encrypted objects in buckets. Cloud storage is used in production,
+ * the local filesystem and in memory stores let the upload and download path
+ * run without it, for development and reproducible performance runs.
+ */
+public interface BlobStore {
+
+    /**
+     * Writes an object to an output stream
+     */
+    interface Writer {
+        /**
+         * @param out Stream to write the object to, should not be closed
+         * @return true if the whole object was written
+         * @throws IOException
+         */
+        boolean write(OutputStream out) throws IOException;
+    }
+
+    /**
+     * Reads an object from any position
+     */
+    interface Reader extends ReadableByteChannel {
+        /**
+         * Moves to a position in the object, the next read starts there
+         * @param position Offset from the start of the object
+         * @throws IOException
+         */
+        void seek(long position) throws IOException;
+
+        /**
+         * Sets how many bytes to fetch at a time, for stores that fetch remotely
+         * @param bytes Bytes to fetch
+         */
+        default void setFetchSize(int bytes) {
+        }
+
+        @Override
+        void close();
+    }
+
+    /**
+     * Metadata of a stored object
+     */
+    class StoredObject {
+        public final String bucketName;
+        public final String objectName;
+        public final long size;
+        // Changes whenever the object is replaced
+        public final long generation;
+
+        public StoredObject(String bucketName, String objectName, long size, long generation) {
+            this.bucketName = bucketName;
+            this.objectName = objectName;
+            this.size = size;
+            this.generation = generation;
+        }
+    }
+
+    /**
+     * Creates a bucket
+     * @param bucketName Full name of the bucket
+     * @throws IOException
+     */
+    void createBucket(String bucketName) throws IOException;
+
+    /**
+     * Stores an object as it is written. The object is only created if the writer
+     * succeeds, a failed write leaves nothing behind.
+     * @param bucketName Bucket to store the object in, which must exist
+     * @param objectName Name of the object
+     * @param type Content type of the object
+     * @param writer Writes the object
+     * @return true if the object was stored, false if the writer failed
+     * @throws IOException If the object could not be stored
+     */
+    boolean put(String bucketName, String objectName, String type, Writer writer) throws IOException;
+
+    /**
+     * Stores an object held in memory
+     * @throws IOException If the object could not be stored
+     */
+    default void put(String bucketName, String objectName, String type, byte[] data) throws IOException {
+        put(bucketName, objectName, type, out -> {
+            out.write(data);
+            return true;
+        });
+    }
+
+    /**
+     * Gets the metadata of an object
+     * @return The object, or null if it does not exist
+     * @throws IOException
+     */
+    StoredObject stat(String bucketName, String objectName) throws IOException;
+
+    /**
+     * Opens an object for reading, starting at the beginning
+     * @param object Object to read
+     * @return Reader that must be closed
+     * @throws IOException
+     */
+    Reader open(StoredObject object) throws IOException;
+
+    /**
+     * Reads a whole object into memory
+     * @return The object
+     * @throws IOException If the object does not exist or could not be read
+     */
+    byte[] getAll(String bucketName, String objectName) throws IOException;
+
+    /**
+     * Copies part of an object to a channel
+     * @param object Object to copy from
+     * @param position Offset of the first byte to copy
+     * @param count Number of bytes to copy
+     * @param out Channel to copy to
+     * @throws IOException If the object could not be read or is shorter than expected
+     */
+    default void copyTo(StoredObject object, long position, long count, WritableByteChannel out) throws IOException {
+        try (Reader reader = open(object)) {
+            reader.seek(position);
+            reader.setFetchSize((int) Math.min(count, EncFileReader.MAX_FETCH_SIZE));
+            ByteBuffer buf = ByteBuffer.allocate((int) Math.min(count, ChunkedAES.ENC_CHUNK_SIZE));
+            long remaining = count;
+            while (remaining > 0) {
+                buf.clear();
+                buf.limit((int) Math.min(buf.capacity(), remaining));
+                int read = reader.read(buf);
+                if (read < 0) {
+                    throw new IOException("Object " + object.objectName + " is shorter than expected");
+                }
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    out.write(buf);
+                }
+                remaining -= read;
+            }
+        }
+    }
+
+    /**
+     * Deletes an object
+     * @return true if the object existed
+     * @throws IOException
+     */
+    boolean delete(String bucketName, String objectName) throws IOException;
+
+    /**
+     * Deletes many objects, objects that do not exist are ignored
+     * @throws IOException
+     */
+    default void delete(String bucketName, List<String> objectNames) throws IOException {
+        for (String objectName : objectNames) {
+            delete(bucketName, objectName);
+        }
+    }
+
+    /**
+     * Creates the store named by the myphrplus.blobstore property
+     * @param type One of gcs, filesystem or memory
+     * @param dir Root directory of the filesystem store
+     * @return The store
+     * @throws IOException If the store could not be created
+     */
+    static BlobStore create(String type, Path dir) throws IOException {
+        switch (type) {
+            case "gcs":
+                return new GcsBlobStore();
+            case "filesystem":
+                return new FileSystemBlobStore(dir);
+            case "memory":
+                return new InMemoryBlobStore();
+            default:
+                throw new IllegalArgumentException("Unknown blob store " + type);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.jws1g18.myphrplus;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import it.unisa.dia.gas.jpbc.Element;
+
+/**
+ * Streaming authenticated encryption using AES-GCM over fixed size chunks.
+ *
+ * Stream layout: a random nonce prefix followed by a sequence of chunks. Every
+ * chunk apart from the last holds exactly CHUNK_SIZE bytes of plaintext, the
+ * last chunk holds less (possibly zero) bytes. Each chunk has its own GCM tag
+ * and a nonce made from the prefix, the chunk index and a final chunk flag, so
+ * chunks cannot be reordered, dropped or truncated without decryption failing.
+ * Memory used is bounded by the chunk size rather than the file size.
+ */
+public class ChunkedAES {
+    public static final int CHUNK_SIZE = 64 * 1024;
+    public static final int TAG_LENGTH = 16;
+    public static final int NONCE_PREFIX_LENGTH = 7;
+    public static final int ENC_CHUNK_SIZE = CHUNK_SIZE + TAG_LENGTH;
+
+    private static final int NONCE_LENGTH = 12;
+    private static final SecureRandom random = new SecureRandom();
+
+    /**
+     * Encrypts a stream in chunks, writing the nonce prefix and encrypted chunks
+     * to the output stream. Neither stream is closed.
+     *
+     * @param key ABE group element used to derive the AES key
+     * @param in  Plaintext stream
+     * @param out Stream to write ciphertext to
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public static void encrypt(Element key, InputStream in, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        SecretKey secretKey = deriveKey(key);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+
+        byte[] prefix = new byte[NONCE_PREFIX_LENGTH];
+        random.nextBytes(prefix);
+        out.write(prefix);
+
+        byte[] buf = new byte[CHUNK_SIZE];
+        byte[] encBuf = new byte[ENC_CHUNK_SIZE];
+        long index = 0;
+        while (true) {
+            int read = readFully(in, buf, CHUNK_SIZE);
+            // A short chunk is always the final one, if the file is an exact multiple
+            // of the chunk size an empty final chunk is written
+            boolean last = read < CHUNK_SIZE;
+            cipher.init(Cipher.ENCRYPT_MODE, secretKey, nonce(prefix, index, last));
+            int len = cipher.doFinal(buf, 0, read, encBuf, 0);
+            out.write(encBuf, 0, len);
+            if (last) {
+                break;
+            }
+            index++;
+        }
+    }
+
+    /**
+     * Decrypts a stream created by encrypt, writing the plaintext to the output
+     * stream. Neither stream is closed.
+     *
+     * @param key ABE group element used to derive the AES key
+     * @param in  Ciphertext stream, positioned at the nonce prefix
+     * @param out Stream to write plaintext to
+     * @throws IOException              If the stream is truncated
+     * @throws GeneralSecurityException If a chunk fails authentication
+     */
+    public static void decrypt(Element key, InputStream in, OutputStream out)
+            throws IOException, GeneralSecurityException {
+        byte[] prefix = readNoncePrefix(in);
+        decryptChunks(key, prefix, in, 0, -1, 0, Long.MAX_VALUE, out);
+    }
+
+    /**
+     * Reads the nonce prefix from the start of an encrypted stream
+     *
+     * @param in Ciphertext stream
+     * @return Nonce prefix
+     * @throws IOException
+     */
+    public static byte[] readNoncePrefix(InputStream in) throws IOException {
+        byte[] prefix = new byte[NONCE_PREFIX_LENGTH];
+        if (readFully(in, prefix, NONCE_PREFIX_LENGTH) != NONCE_PREFIX_LENGTH) {
+            throw new EOFException("Encrypted stream is truncated");
+        }
+        return prefix;
+    }
+
+    /**
+     * Decrypts chunks from a stream positioned at the start of chunk firstChunk,
+     * skipping the first skip bytes of plaintext and writing at most length bytes
+     *
+     * @param key         ABE group element used to derive the AES key
+     * @param prefix      Nonce prefix of the stream
+     * @param in          Ciphertext stream positioned at chunk firstChunk
+     * @param firstChunk  Index of the first chunk in the stream
+     * @param totalChunks Number of chunks in the whole stream, or -1 if unknown
+     * @param skip        Plaintext bytes to skip in the first chunk
+     * @param length      Maximum number of plaintext bytes to write
+     * @param out         Stream to write plaintext to
+     * @throws IOException
+     * @throws GeneralSecurityException
+     */
+    public static void decryptChunks(Element key, byte[] prefix, InputStream in, long firstChunk, long totalChunks,
+            long skip, long length, OutputStream out) throws IOException, GeneralSecurityException {
+        SecretKey secretKey = deriveKey(key);
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+
+        byte[] encBuf = new byte[ENC_CHUNK_SIZE];
+        byte[] buf = new byte[CHUNK_SIZE];
+        long index = firstChunk;
+        long remaining = length;
+        while (remaining > 0) {
+            int read = readFully(in, encBuf, ENC_CHUNK_SIZE);
+            if (read < TAG_LENGTH) {
+                throw new EOFException("Encrypted stream is truncated");
+            }
+            // Only a short chunk can be the final one
+            boolean last = read < ENC_CHUNK_SIZE;
+            if (totalChunks >= 0 && last != (index == totalChunks - 1)) {
+                throw new EOFException("Encrypted stream is truncated");
+            }
+            cipher.init(Cipher.DECRYPT_MODE, secretKey, nonce(prefix, index, last));
+            int len = cipher.doFinal(encBuf, 0, read, buf, 0);
+
+            int off = (int) Math.min(skip, len);
+            skip -= off;
+            int write = (int) Math.min(remaining, len - off);
+            out.write(buf, off, write);
+            remaining -= write;
+            if (last) {
+                break;
+            }
+            index++;
+        }
+    }
+
+    /**
+     * Calculates the number of chunks in an encrypted payload
+     *
+     * @param payloadLength Length of the payload including the nonce prefix
+     * @return Number of chunks
+     */
+    public static long chunkCount(long payloadLength) {
+        return (payloadLength - NONCE_PREFIX_LENGTH) / ENC_CHUNK_SIZE + 1;
+    }
+
+    /**
+     * Calculates the plaintext length of an encrypted payload
+     *
+     * @param payloadLength Length of the payload including the nonce prefix
+     * @return Plaintext length in bytes
+     */
+    public static long plaintextLength(long payloadLength) {
+        return payloadLength - NONCE_PREFIX_LENGTH - chunkCount(payloadLength) * TAG_LENGTH;
+    }
+
+    /**
+     * Calculates the offset of a chunk from the start of the payload
+     *
+     * @param chunk Chunk index
+     * @return Offset in bytes
+     */
+    public static long chunkOffset(long chunk) {
+        return NONCE_PREFIX_LENGTH + chunk * ENC_CHUNK_SIZE;
+    }
+
+    /**
+     * Derives an AES key from an ABE group element
+     */
+    private static SecretKey deriveKey(Element key) throws GeneralSecurityException {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.toBytes());
+        return new SecretKeySpec(Arrays.copyOf(digest, 16), "AES");
+    }
+
+    /**
+     * Builds the nonce for a chunk: prefix || big endian chunk index || final flag
+     */
+    private static GCMParameterSpec nonce(byte[] prefix, long index, boolean last) {
+        if (index > 0xffffffffL) {
+            throw new IllegalArgumentException("Too many chunks");
+        }
+        byte[] nonce = new byte[NONCE_LENGTH];
+        System.arraycopy(prefix, 0, nonce, 0, NONCE_PREFIX_LENGTH);
+        nonce[7] = (byte) (index >>> 24);
+        nonce[8] = (byte) (index >>> 16);
+        nonce[9] = (byte) (index >>> 8);
+        nonce[10] = (byte) index;
+        nonce[11] = (byte) (last ? 1 : 0);
+        return new GCMParameterSpec(TAG_LENGTH * 8, nonce);
+    }
+
+    /**
+     * Reads until the buffer holds len bytes or the stream ends
+     *
+     * @return Number of bytes read
+     */
+    private static int readFully(InputStream in, byte[] buf, int len) throws IOException {
+        int total = 0;
+        while (total < len) {
+            int read = in.read(buf, total, len - total);
+            if (read < 0) {
+                break;
+            }
+            total += read;
+        }
+        return total;
+    }
+}
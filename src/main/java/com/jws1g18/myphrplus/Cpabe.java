@@ -0,0 +1,741 @@
+package com.jws1g18.myphrplus;
+
+import java.io.ByteArrayOutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import co.junwei.bswabe.BswabeMsk;
+import co.junwei.bswabe.BswabePrv;
+import co.junwei.bswabe.BswabePub;
+import co.junwei.bswabe.SerializeUtils;
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.Field;
+
+/**
+ * Bethencourt-Sahai-Waters CP-ABE encryption, decryption, key generation and
+ * delegation. Produces the same ciphertexts and keys as co.junwei.bswabe.Bswabe,
+ * in its serialized formats, but raises the fixed public elements using the
+ * power tables of a {@link PreparedPub}.
+ */
+public class Cpabe {
+    // Below this many leaves handing them to a pool costs more than it saves
+    static final int MIN_PARALLEL_LEAVES = 4;
+
+    /**
+     * Ciphertext of a random key, the key is used to encrypt the file itself
+     */
+    public static class CphKey {
+        // Serialized as by SerializeUtils.bswabeCphSerialize
+        public final byte[] cph;
+        public final Element key;
+
+        CphKey(byte[] cph, Element key) {
+            this.cph = cph;
+            this.key = key;
+        }
+    }
+
+    /**
+     * The part of an encryption that does not depend on the policy, it can be
+     * made ahead of time (see {@link OfflineEncPool}) but must only be used once
+     */
+    public static class Offline {
+        final Element s;
+        final Element m;
+        final Element cs;
+        final Element c;
+        // The c of every leaf whose share is s, those reached only through OR nodes
+        final Element gS;
+
+        Offline(Element s, Element m, Element cs, Element c, Element gS) {
+            this.s = s;
+            this.m = m;
+            this.cs = cs;
+            this.c = c;
+            this.gS = gS;
+        }
+    }
+
+    /**
+     * Makes the offline part of an encryption
+     *
+     * @param pub Public key
+     * @return Secret, key and policy independent components of a ciphertext
+     */
+    public static Offline offline(PreparedPub pub) {
+        Element s = pub.p.getZr().newElement().setToRandom();
+        Element m = pub.p.getGT().newElement().setToRandom();
+        return new Offline(s, m, pub.gHatAlphaPow.powZn(s).mul(m), pub.hPow.powZn(s), pub.gPow.powZn(s));
+    }
+
+    /**
+     * Encrypts a random key under a policy
+     *
+     * @param pub    Public key
+     * @param policy Postfix policy, see {@link ABE#encrypt(co.junwei.bswabe.BswabePub, String, byte[])}
+     * @param pool   Pool to compute the leaves of wide policies on, or null to
+     *               compute every leaf on the calling thread
+     * @return The ciphertext and key, or null if the policy is invalid
+     * @throws NoSuchAlgorithmException
+     */
+    public static CphKey enc(PreparedPub pub, String policy, ForkJoinPool pool) throws NoSuchAlgorithmException {
+        return enc(pub, policy, pool, null);
+    }
+
+    /**
+     * Encrypts a random key under a policy, using an offline part made ahead of
+     * time so only the leaves are computed
+     *
+     * @param pub     Public key
+     * @param policy  Postfix policy, see {@link ABE#encrypt(co.junwei.bswabe.BswabePub, String, byte[])}
+     * @param pool    Pool to compute the leaves of wide policies on, or null to
+     *                compute every leaf on the calling thread
+     * @param offline Offline part made with the same public key, or null to make
+     *                the whole ciphertext now
+     * @return The ciphertext and key, or null if the policy is invalid
+     * @throws NoSuchAlgorithmException
+     */
+    public static CphKey enc(PreparedPub pub, String policy, ForkJoinPool pool, Offline offline)
+            throws NoSuchAlgorithmException {
+        Node root = parsePolicy(policy);
+        if (root == null) {
+            return null;
+        }
+        Element s = offline == null ? pub.p.getZr().newElement().setToRandom() : offline.s;
+        Element m = offline == null ? pub.p.getGT().newElement().setToRandom() : offline.m;
+
+        // Sharing the secret is cheap, the two exponentiations per leaf are not
+        ArrayList<Node> leaves = new ArrayList<>();
+        sharePolicy(root, s, leaves);
+        if (offline != null) {
+            for (Node leaf : leaves) {
+                if (leaf.share.isEqual(s)) {
+                    leaf.c = offline.gS;
+                }
+            }
+        }
+        ForkJoinTask<Void> leafTask = null;
+        if (pool != null && leaves.size() >= MIN_PARALLEL_LEAVES) {
+            leafTask = pool.submit(new LeafTask(pub, leaves, 0, leaves.size()));
+        } else {
+            for (Node leaf : leaves) {
+                leaf.fill(pub);
+            }
+        }
+
+        Writer out = new Writer();
+        if (offline == null) {
+            out.element(pub.gHatAlphaPow.powZn(s).mul(m)); // cs
+            out.element(pub.hPow.powZn(s)); // c
+        } else {
+            out.element(offline.cs);
+            out.element(offline.c);
+        }
+        if (leafTask != null) {
+            leafTask.join();
+        }
+        writePolicy(out, root);
+        return new CphKey(out.toByteArray(), m);
+    }
+
+    /**
+     * Generates a private key for a set of attributes
+     *
+     * @param pub   Public key
+     * @param msk   Master key
+     * @param attrs Attributes of the key
+     * @return Private key
+     * @throws NoSuchAlgorithmException
+     */
+    public static BswabePrv keygen(PreparedPub pub, BswabeMsk msk, String[] attrs) throws NoSuchAlgorithmException {
+        return keygen(pub, msk, Collections.singletonList(attrs), null).get(0);
+    }
+
+    /**
+     * Generates private keys for many users at once. The components of every key
+     * are computed together, so a pool is kept busy however the attributes are
+     * spread between users.
+     *
+     * @param pub   Public key
+     * @param msk   Master key
+     * @param attrs Attributes of each key
+     * @param pool  Pool to compute the components on, or null to compute them on
+     *              the calling thread
+     * @return Private keys, in the same order as attrs
+     * @throws NoSuchAlgorithmException
+     */
+    public static List<BswabePrv> keygen(PreparedPub pub, BswabeMsk msk, List<String[]> attrs, ForkJoinPool pool)
+            throws NoSuchAlgorithmException {
+        Element beta = msk.beta.duplicate().invert();
+        ArrayList<KeyComp> comps = new ArrayList<>();
+        for (String[] keyAttrs : attrs) {
+            Element gR = pub.gpPow.powZn(pub.p.getZr().newElement().setToRandom());
+            comps.add(new KeyComp(null, gR));
+            for (String attr : keyAttrs) {
+                comps.add(new KeyComp(attr, gR));
+            }
+        }
+
+        if (pool != null && comps.size() >= MIN_PARALLEL_LEAVES) {
+            pool.invoke(new KeyTask(pub, msk, beta, comps, 0, comps.size()));
+        } else {
+            for (KeyComp comp : comps) {
+                comp.fill(pub, msk, beta);
+            }
+        }
+
+        ArrayList<BswabePrv> keys = new ArrayList<>(attrs.size());
+        int next = 0;
+        for (String[] keyAttrs : attrs) {
+            Writer out = new Writer();
+            out.element(comps.get(next++).d);
+            out.uint32(keyAttrs.length);
+            for (int i = 0; i < keyAttrs.length; i++) {
+                KeyComp comp = comps.get(next++);
+                out.string(comp.attr);
+                out.element(comp.d);
+                out.element(comp.dp);
+            }
+            keys.add(SerializeUtils.unserializeBswabePrv(pub, out.toByteArray()));
+        }
+        return keys;
+    }
+
+    /**
+     * Component of a private key being generated, the d of the key itself if attr
+     * is null
+     */
+    private static class KeyComp {
+        final String attr;
+        // g^r shared by every component of the key
+        final Element gR;
+        Element d;
+        Element dp;
+
+        KeyComp(String attr, Element gR) {
+            this.attr = attr;
+            this.gR = gR;
+        }
+
+        void fill(PreparedPub pub, BswabeMsk msk, Element beta) throws NoSuchAlgorithmException {
+            if (attr == null) {
+                d = msk.g_alpha.duplicate().mul(gR).powZn(beta);
+                return;
+            }
+            Element rj = pub.p.getZr().newElement().setToRandom();
+            d = pub.hashAttribute(attr).duplicate().powZn(rj).mul(gR);
+            dp = pub.gPow.powZn(rj);
+        }
+    }
+
+    /**
+     * Fills a range of key components, splitting it in half until one is left
+     */
+    private static class KeyTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient PreparedPub pub;
+        private final transient BswabeMsk msk;
+        private final transient Element beta;
+        private final transient List<KeyComp> comps;
+        private final int from;
+        private final int to;
+
+        KeyTask(PreparedPub pub, BswabeMsk msk, Element beta, List<KeyComp> comps, int from, int to) {
+            this.pub = pub;
+            this.msk = msk;
+            this.beta = beta;
+            this.comps = comps;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    comps.get(from).fill(pub, msk, beta);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new KeyTask(pub, msk, beta, comps, from, mid), new KeyTask(pub, msk, beta, comps, mid, to));
+        }
+    }
+
+    /**
+     * Delegates a private key for a subset of another keys attributes
+     *
+     * @param pub   Public key returned by setup, a deserialized public key can not
+     *              delegate
+     * @param prv   Private key to delegate from
+     * @param attrs Attributes of the new key, each must be in prv
+     * @return Private key
+     * @throws NoSuchAlgorithmException
+     * @throws IllegalArgumentException If an attribute is not in prv or the public
+     *                                  key can not delegate
+     */
+    public static BswabePrv delegate(PreparedPub pub, BswabePrv prv, String[] attrs)
+            throws NoSuchAlgorithmException {
+        if (pub.fPow == null) {
+            throw new IllegalArgumentException("Public key can not delegate");
+        }
+        Reader src = new Reader(SerializeUtils.serializeBswabePrv(prv));
+        Element d = src.element(pub.p.getG2());
+        int comps = src.uint32();
+        ArrayList<String> srcAttrs = new ArrayList<>(comps);
+        ArrayList<Element[]> srcComps = new ArrayList<>(comps);
+        for (int i = 0; i < comps; i++) {
+            srcAttrs.add(src.string());
+            srcComps.add(new Element[] { src.element(pub.p.getG2()), src.element(pub.p.getG1()) });
+        }
+
+        Element rt = pub.p.getZr().newElement().setToRandom();
+        Element gRt = pub.gPow.powZn(rt);
+
+        Writer out = new Writer();
+        out.element(d.mul(pub.fPow.powZn(rt)));
+        out.uint32(attrs.length);
+        for (String attr : attrs) {
+            int i = srcAttrs.indexOf(attr);
+            if (i < 0) {
+                throw new IllegalArgumentException("Attribute " + attr + " is not in the private key");
+            }
+            Element rj = pub.p.getZr().newElement().setToRandom();
+            out.string(attr);
+            out.element(pub.hashAttribute(attr).duplicate().powZn(rj).mul(gRt).mul(srcComps.get(i)[0]));
+            out.element(pub.gPow.powZn(rj).mul(srcComps.get(i)[1]));
+        }
+        return SerializeUtils.unserializeBswabePrv(pub, out.toByteArray());
+    }
+
+    /**
+     * Shares a secret down the policy tree, collecting the leaves in order
+     */
+    private static void sharePolicy(Node node, Element secret, ArrayList<Node> leaves) {
+        Element[] q = randPoly(node.k - 1, secret);
+        if (node.children == null) {
+            node.share = q[0];
+            leaves.add(node);
+            return;
+        }
+        Element x = secret.getField().newElement();
+        for (int i = 0; i < node.children.length; i++) {
+            x.set(i + 1);
+            sharePolicy(node.children[i], evalPoly(q, x), leaves);
+        }
+    }
+
+    /**
+     * Writes a filled policy tree as SerializeUtils does
+     */
+    private static void writePolicy(Writer out, Node node) {
+        out.uint32(node.k);
+        if (node.children == null) {
+            out.uint32(0);
+            out.string(node.attr);
+            out.element(node.c);
+            out.element(node.cp);
+            return;
+        }
+        out.uint32(node.children.length);
+        for (Node child : node.children) {
+            writePolicy(out, child);
+        }
+    }
+
+    /**
+     * Fills a range of leaves, splitting it in half until one leaf is left
+     */
+    private static class LeafTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient PreparedPub pub;
+        private final transient List<Node> leaves;
+        private final int from;
+        private final int to;
+
+        LeafTask(PreparedPub pub, List<Node> leaves, int from, int to) {
+            this.pub = pub;
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                try {
+                    leaves.get(from).fill(pub);
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new LeafTask(pub, leaves, from, mid), new LeafTask(pub, leaves, mid, to));
+        }
+    }
+
+    /**
+     * Recovers the key of a ciphertext. The cheapest set of leaves that satisfies
+     * the policy is planned before any pairing, then only those leaves are paired,
+     * on the pool when there are several of them. A wide OR policy costs about
+     * the same as a single leaf.
+     *
+     * @param pub  Public key
+     * @param prv  Private key
+     * @param cph  Ciphertext, serialized as by SerializeUtils.bswabeCphSerialize
+     * @param pool Pool to pair the leaves on, or null to pair them on the calling
+     *             thread
+     * @return The key, or null if the private key does not satisfy the policy
+     */
+    public static Element dec(BswabePub pub, BswabePrv prv, byte[] cph, ForkJoinPool pool) {
+        Reader key = new Reader(SerializeUtils.serializeBswabePrv(prv));
+        Element d = key.element(pub.p.getG2());
+        int comps = key.uint32();
+        HashMap<String, Element[]> attrs = new HashMap<>();
+        for (int i = 0; i < comps; i++) {
+            String attr = key.string();
+            Element[] comp = { key.element(pub.p.getG2()), key.element(pub.p.getG1()) };
+            // Bswabe uses the first component with a matching attribute
+            attrs.putIfAbsent(attr, comp);
+        }
+
+        Reader in = new Reader(cph);
+        Element cs = in.element(pub.p.getGT());
+        Element c = in.element(pub.p.getG1());
+        // Leaf elements are only read for the leaves that are paired
+        Node root = readPolicy(in, attrs);
+        if (planPolicy(root) == 0) {
+            return null;
+        }
+
+        ArrayList<Node> leaves = new ArrayList<>();
+        ArrayList<Element> exps = new ArrayList<>();
+        collectPlan(root, pub.p.getZr().newElement().setToOne(), leaves, exps);
+        Element[] parts = new Element[leaves.size()];
+        ForkJoinTask<Void> pairTask = null;
+        if (pool != null && leaves.size() > 1) {
+            pairTask = pool.submit(new PairTask(pub, cph, leaves, exps, parts, 0, parts.length));
+        } else {
+            for (int i = 0; i < parts.length; i++) {
+                parts[i] = pairLeaf(pub, cph, leaves.get(i), exps.get(i));
+            }
+        }
+
+        Element m = pub.p.pairing(c, d).invert().mul(cs);
+        if (pairTask != null) {
+            pairTask.join();
+        }
+        for (Element part : parts) {
+            m.mul(part);
+        }
+        return m;
+    }
+
+    /**
+     * Reads a policy tree, noting where each leaf's elements are and the key
+     * component for its attribute
+     */
+    private static Node readPolicy(Reader in, Map<String, Element[]> attrs) {
+        int k = in.uint32();
+        int n = in.uint32();
+        if (n == 0) {
+            Node leaf = new Node(k, in.string());
+            leaf.offset = in.position();
+            leaf.comp = attrs.get(leaf.attr);
+            in.skip();
+            in.skip();
+            return leaf;
+        }
+        Node node = new Node(k, null);
+        node.children = new Node[n];
+        for (int i = 0; i < n; i++) {
+            node.children[i] = readPolicy(in, attrs);
+        }
+        return node;
+    }
+
+    /**
+     * Picks the children with the fewest leaves that satisfy each node, as
+     * Bswabe does, but without pairing
+     *
+     * @return Leaves needed to satisfy the node, 0 if it can not be satisfied
+     */
+    private static int planPolicy(Node node) {
+        if (node.children == null) {
+            node.minLeaves = node.comp == null ? 0 : 1;
+            return node.minLeaves;
+        }
+        ArrayList<Integer> satisfied = new ArrayList<>();
+        for (int i = 0; i < node.children.length; i++) {
+            if (planPolicy(node.children[i]) > 0) {
+                satisfied.add(i);
+            }
+        }
+        if (satisfied.size() < node.k) {
+            node.minLeaves = 0;
+            return 0;
+        }
+        // Stable, so equally cheap children are picked in policy order
+        satisfied.sort((a, b) -> Integer.compare(node.children[a].minLeaves, node.children[b].minLeaves));
+        node.plan = new int[node.k];
+        node.minLeaves = 0;
+        for (int i = 0; i < node.k; i++) {
+            node.plan[i] = satisfied.get(i);
+            node.minLeaves += node.children[node.plan[i]].minLeaves;
+        }
+        return node.minLeaves;
+    }
+
+    /**
+     * Collects the planned leaves with the product of the Lagrange coefficients
+     * on their path, the power their pairings are raised to
+     */
+    private static void collectPlan(Node node, Element exp, List<Node> leaves, List<Element> exps) {
+        if (node.children == null) {
+            leaves.add(node);
+            exps.add(exp);
+            return;
+        }
+        for (int i : node.plan) {
+            collectPlan(node.children[i], lagrangeCoef(exp, node.plan, i), leaves, exps);
+        }
+    }
+
+    /**
+     * @return exp times the Lagrange coefficient at 0 of child i among the planned
+     *         children, children are at x = index + 1
+     */
+    private static Element lagrangeCoef(Element exp, int[] plan, int i) {
+        Element r = exp.duplicate();
+        Element t = exp.getField().newElement();
+        for (int j : plan) {
+            if (j == i) {
+                continue;
+            }
+            r.mul(t.set(-(j + 1)));
+            r.mul(t.set(i - j).invert());
+        }
+        return r;
+    }
+
+    /**
+     * @return (e(c, d) / e(cp, dp)) ^ exp for a leaf
+     */
+    private static Element pairLeaf(BswabePub pub, byte[] cph, Node leaf, Element exp) {
+        Reader in = new Reader(cph);
+        in.seek(leaf.offset);
+        Element c = in.element(pub.p.getG1());
+        Element cp = in.element(pub.p.getG1());
+        Element part = pub.p.pairing(c, leaf.comp[0]).mul(pub.p.pairing(cp, leaf.comp[1]).invert());
+        // Coefficients are one all the way down OR policies
+        return exp.isOne() ? part : part.powZn(exp);
+    }
+
+    /**
+     * Pairs a range of planned leaves, splitting it in half until one leaf is left
+     */
+    private static class PairTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final transient BswabePub pub;
+        private final byte[] cph;
+        private final transient List<Node> leaves;
+        private final transient List<Element> exps;
+        private final transient Element[] parts;
+        private final int from;
+        private final int to;
+
+        PairTask(BswabePub pub, byte[] cph, List<Node> leaves, List<Element> exps, Element[] parts, int from,
+                int to) {
+            this.pub = pub;
+            this.cph = cph;
+            this.leaves = leaves;
+            this.exps = exps;
+            this.parts = parts;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                parts[from] = pairLeaf(pub, cph, leaves.get(from), exps.get(from));
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new PairTask(pub, cph, leaves, exps, parts, from, mid),
+                    new PairTask(pub, cph, leaves, exps, parts, mid, to));
+        }
+    }
+
+    /**
+     * @return Coefficients of a random polynomial of degree deg with q(0) = secret
+     */
+    private static Element[] randPoly(int deg, Element secret) {
+        Element[] coef = new Element[deg + 1];
+        coef[0] = secret.duplicate();
+        for (int i = 1; i <= deg; i++) {
+            coef[i] = secret.getField().newElement().setToRandom();
+        }
+        return coef;
+    }
+
+    private static Element evalPoly(Element[] coef, Element x) {
+        // Horner's rule
+        Element r = coef[coef.length - 1].duplicate();
+        for (int i = coef.length - 2; i >= 0; i--) {
+            r.mul(x).add(coef[i]);
+        }
+        return r;
+    }
+
+    /**
+     * Policy tree node, a leaf if children is null
+     */
+    static class Node {
+        final int k;
+        final String attr;
+        Node[] children;
+        // Leaves only, the share of the secret and the ciphertext components
+        Element share;
+        Element c;
+        Element cp;
+        // Decryption only, where c and cp start in the ciphertext and the matching key component
+        int offset;
+        Element[] comp;
+        // Leaves needed to satisfy the node, 0 if it can not be satisfied
+        int minLeaves;
+        // Indexes of the cheapest children that satisfy the node
+        int[] plan;
+
+        Node(int k, String attr) {
+            this.k = k;
+            this.attr = attr;
+        }
+
+        void fill(PreparedPub pub) throws NoSuchAlgorithmException {
+            if (c == null) {
+                c = pub.gPow.powZn(share);
+            }
+            cp = pub.hashAttribute(attr).duplicate().powZn(share);
+        }
+    }
+
+    /**
+     * Parses a postfix policy, such as "foo bar fim 2of3 baf 1of2", as Bswabe does
+     *
+     * @return The root of the policy, or null if the policy is invalid
+     */
+    static Node parsePolicy(String policy) {
+        ArrayList<Node> stack = new ArrayList<>();
+        for (String tok : policy.split(" ")) {
+            if (!tok.contains("of")) {
+                stack.add(new Node(1, tok));
+                continue;
+            }
+            String[] kn = tok.split("of");
+            int k = Integer.parseInt(kn[0]);
+            int n = Integer.parseInt(kn[1]);
+            // Trivially satisfied, unsatisfiable, identity or stack underflow
+            if (k < 1 || k > n || n == 1 || n > stack.size()) {
+                return null;
+            }
+            Node node = new Node(k, null);
+            node.children = new Node[n];
+            for (int i = n - 1; i >= 0; i--) {
+                node.children[i] = stack.remove(stack.size() - 1);
+            }
+            stack.add(node);
+        }
+        return stack.size() == 1 ? stack.get(0) : null;
+    }
+
+    /**
+     * Writes the serialized format of SerializeUtils
+     */
+    private static class Writer {
+        private final ByteArrayOutputStream buf = new ByteArrayOutputStream(1024);
+
+        void uint32(int v) {
+            buf.write(v >>> 24);
+            buf.write(v >>> 16);
+            buf.write(v >>> 8);
+            buf.write(v);
+        }
+
+        void element(Element e) {
+            byte[] bytes = e.toBytes();
+            uint32(bytes.length);
+            buf.writeBytes(bytes);
+        }
+
+        void string(String s) {
+            byte[] bytes = s.getBytes();
+            uint32(bytes.length);
+            buf.writeBytes(bytes);
+        }
+
+        byte[] toByteArray() {
+            return buf.toByteArray();
+        }
+    }
+
+    /**
+     * Reads the serialized format of SerializeUtils
+     */
+    private static class Reader {
+        private final byte[] buf;
+        private int pos = 0;
+
+        Reader(byte[] buf) {
+            this.buf = buf;
+        }
+
+        int uint32() {
+            int v = (buf[pos] & 0xff) << 24 | (buf[pos + 1] & 0xff) << 16 | (buf[pos + 2] & 0xff) << 8
+                    | (buf[pos + 3] & 0xff);
+            pos += 4;
+            return v;
+        }
+
+        Element element(Field<?> field) {
+            int len = uint32();
+            Element e = field.newElement();
+            e.setFromBytes(buf, pos);
+            pos += len;
+            return e;
+        }
+
+        String string() {
+            int len = uint32();
+            String s = new String(buf, pos, len);
+            pos += len;
+            return s;
+        }
+
+        void skip() {
+            int len = uint32();
+            pos += len;
+        }
+
+        int position() {
+            return pos;
+        }
+
+        void seek(int position) {
+            pos = position;
+        }
+    }
+}
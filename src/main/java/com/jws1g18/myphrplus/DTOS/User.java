@@ -18,6 +18,8 @@ public class User {
     public ArrayList<String> dataRequesters;
     public ArrayList<String> files;
     public ArrayList<String> reminders;
+    // Secret version of the users current private key, 0 if it has never been replaced
+    public long keyVersion = 0;
 
     public String convertToJson() {
         return Json.createObjectBuilder().add("name", name).add("email", email).add("role", role).build().toString();
@@ -0,0 +1,42 @@
+package com.jws1g18.myphrplus;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factories for the background pools. Every thread is a daemon so
+ * background work never keeps the server from stopping, and is numbered after
+ * the name of its pool.
+ */
+final class DaemonThreads {
+    private DaemonThreads() {
+    }
+
+    /**
+     * @param name Name of the pool
+     * @return Factory for daemon threads named name-1, name-2 and so on
+     */
+    static ThreadFactory named(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /**
+     * @param name Name of the pool
+     * @return Factory for fork join workers named after their pool index, fork join
+     *         workers are always daemons
+     */
+    static ForkJoinPool.ForkJoinWorkerThreadFactory forkJoin(String name) {
+        return pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName(name + "-" + thread.getPoolIndex());
+            return thread;
+        };
+    }
+}
@@ -2,6 +2,11 @@ package com.jws1g18.myphrplus;
 
 import java.io.Serializable;
 
+/**
+ * Legacy encrypted file format, a Java serialized pair of the AES encrypted
+ * file and ABE ciphertext. Only read for files uploaded before the
+ * EncFileHeader container was introduced.
+ */
 public class EncFile implements Serializable{
     byte[] aesBuf;
     byte[] cphBuf;
@@ -0,0 +1,157 @@
+package com.jws1g18.myphrplus;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Header of the binary encrypted file container.
+ *
+ * Layout (big endian): magic "MPHR" | version (1 byte) | chunk size (4 bytes) |
+ * header length (4 bytes) | ABE ciphertext (header length bytes) | payload.
+ * The payload is a ChunkedAES stream, so the ABE ciphertext can be read and
+ * decrypted before any of the payload is fetched.
+ */
+public class EncFileHeader {
+    static final byte[] MAGIC = { 'M', 'P', 'H', 'R' };
+    static final int VERSION = 1;
+    static final int PREFIX_LENGTH = MAGIC.length + 1 + 4 + 4;
+    // Ciphertexts of the widest policies are tens of KB, anything larger is corrupt
+    static final int MAX_CPH_LENGTH = 1024 * 1024;
+
+    private final int version;
+    private final int chunkSize;
+    private final byte[] cphBuf;
+
+    public EncFileHeader(byte[] cphBuf) {
+        this(VERSION, ChunkedAES.CHUNK_SIZE, cphBuf);
+    }
+
+    private EncFileHeader(int version, int chunkSize, byte[] cphBuf) {
+        this.version = version;
+        this.chunkSize = chunkSize;
+        this.cphBuf = cphBuf;
+    }
+
+    public int getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return Serialized ABE ciphertext
+     */
+    public byte[] getCphBuf() {
+        return this.cphBuf;
+    }
+
+    /**
+     * @return Number of bytes before the payload starts
+     */
+    public long length() {
+        return PREFIX_LENGTH + cphBuf.length;
+    }
+
+    /**
+     * Writes the header to a stream
+     *
+     * @param out Stream to write to
+     * @throws IOException
+     */
+    public void write(OutputStream out) throws IOException {
+        checkLength(cphBuf.length);
+        DataOutputStream dataOut = new DataOutputStream(out);
+        dataOut.write(MAGIC);
+        dataOut.writeByte(version);
+        dataOut.writeInt(chunkSize);
+        dataOut.writeInt(cphBuf.length);
+        dataOut.write(cphBuf);
+        dataOut.flush();
+    }
+
+    /**
+     * Checks if the start of a file is a container rather than a legacy
+     * serialized EncFile
+     *
+     * @param prefix First bytes of the file
+     * @return true if the file starts with the container magic
+     */
+    public static boolean isContainer(byte[] prefix) {
+        return prefix.length >= MAGIC.length && Arrays.equals(Arrays.copyOf(prefix, MAGIC.length), MAGIC);
+    }
+
+    /**
+     * Reads a header from a stream, leaving the stream positioned at the payload
+     *
+     * @param in Stream to read from
+     * @return The header
+     * @throws IOException If the stream is not a valid container
+     */
+    public static EncFileHeader read(InputStream in) throws IOException {
+        DataInputStream dataIn = new DataInputStream(in);
+        byte[] magic = new byte[MAGIC.length];
+        dataIn.readFully(magic);
+        if (!isContainer(magic)) {
+            throw new IOException("Not an encrypted file container");
+        }
+        int version = dataIn.readUnsignedByte();
+        int chunkSize = dataIn.readInt();
+        checkHeader(version, chunkSize);
+        int length = dataIn.readInt();
+        checkLength(length);
+        byte[] cphBuf = new byte[length];
+        dataIn.readFully(cphBuf);
+        return new EncFileHeader(version, chunkSize, cphBuf);
+    }
+
+    /**
+     * Reads a header from a buffer, such as a memory mapped file, leaving the
+     * buffer positioned at the payload
+     *
+     * @param buf Buffer to read from
+     * @return The header
+     * @throws IOException If the buffer is not a valid container
+     */
+    public static EncFileHeader read(ByteBuffer buf) throws IOException {
+        try {
+            byte[] magic = new byte[MAGIC.length];
+            buf.get(magic);
+            if (!isContainer(magic)) {
+                throw new IOException("Not an encrypted file container");
+            }
+            int version = buf.get() & 0xff;
+            int chunkSize = buf.getInt();
+            checkHeader(version, chunkSize);
+            int length = buf.getInt();
+            checkLength(length);
+            if (length > buf.remaining()) {
+                throw new IOException("Invalid header length");
+            }
+            byte[] cphBuf = new byte[length];
+            buf.get(cphBuf);
+            return new EncFileHeader(version, chunkSize, cphBuf);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Encrypted file container is truncated", e);
+        }
+    }
+
+    private static void checkHeader(int version, int chunkSize) throws IOException {
+        if (version != VERSION) {
+            throw new IOException("Unsupported container version " + version);
+        }
+        if (chunkSize != ChunkedAES.CHUNK_SIZE) {
+            throw new IOException("Unsupported chunk size " + chunkSize);
+        }
+    }
+
+    // Checked before allocating, the length comes from the stored object
+    private static void checkLength(int length) throws IOException {
+        if (length < 0 || length > MAX_CPH_LENGTH) {
+            throw new IOException("Invalid header length " + length);
+        }
+    }
+}
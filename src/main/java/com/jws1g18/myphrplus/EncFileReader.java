@@ -0,0 +1,169 @@
+package com.jws1g18.myphrplus;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.security.GeneralSecurityException;
+
+import co.junwei.bswabe.BswabePrv;
+import co.junwei.bswabe.BswabePub;
+import it.unisa.dia.gas.jpbc.Element;
+
+/**
+ * Reads the plaintext of an encrypted file from a blob store, or from a cached
+ * copy, as it is sent.
+ *
+ * The header is read and its key recovered before anything is sent, so a user
+ * without the right attributes gets an error rather than a broken download.
+ * For encrypted file containers any range of the plaintext can be read, only
+ * the chunks covering the range are fetched. Legacy files cannot be read in
+ * parts so they are fetched and decrypted whole.
+ */
+public class EncFileReader implements Closeable {
+    // Bytes fetched at a time while reading the header
+    static final int HEADER_FETCH_SIZE = 64 * 1024;
+    // Most bytes fetched at a time while reading the payload
+    static final int MAX_FETCH_SIZE = 1024 * 1024;
+
+    // Either the channel or the buffer is read
+    private final BlobStore.Reader channel;
+    private final ByteBuffer buffer;
+    private final long size;
+    private InputStream in;
+    private EncFileHeader header;
+    private byte[] noncePrefix;
+    private Element key;
+    private byte[] legacyFile;
+    // True while in is positioned at the first chunk
+    private boolean atFirstChunk = false;
+
+    private EncFileReader(BlobStore.Reader channel, ByteBuffer buffer, long size) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.size = size;
+    }
+
+    /**
+     * Opens an encrypted file
+     * @param channel Reader over the stored object, closed with the reader
+     * @param size Size of the stored object in bytes
+     * @return The reader
+     */
+    public static EncFileReader open(BlobStore.Reader channel, long size) {
+        channel.setFetchSize(HEADER_FETCH_SIZE);
+        EncFileReader reader = new EncFileReader(channel, null, size);
+        reader.in = new BufferedInputStream(Channels.newInputStream(channel), EncFileHeader.PREFIX_LENGTH);
+        return reader;
+    }
+
+    /**
+     * Opens an encrypted file held in a buffer, such as a memory mapped cache file
+     * @param buffer Buffer holding the whole stored object
+     * @return The reader
+     */
+    public static EncFileReader open(ByteBuffer buffer) {
+        EncFileReader reader = new EncFileReader(null, buffer, buffer.remaining());
+        reader.in = new BufferedInputStream(new ABE.ByteBufferInputStream(buffer.duplicate()),
+                EncFileHeader.PREFIX_LENGTH);
+        return reader;
+    }
+
+    /**
+     * Recovers the key of the file, which must be done before it is read
+     * @param pub Public key
+     * @param prv Private key
+     * @return true if the private key satisfies the files policy
+     * @throws IOException If the file could not be read or is not an encrypted file
+     */
+    public boolean unlock(BswabePub pub, BswabePrv prv) throws IOException {
+        in.mark(EncFileHeader.MAGIC.length);
+        byte[] magic = in.readNBytes(EncFileHeader.MAGIC.length);
+        in.reset();
+        if (!EncFileHeader.isContainer(magic)) {
+            if (channel != null) {
+                channel.setFetchSize(MAX_FETCH_SIZE);
+            }
+            legacyFile = ABE.decrypt(pub, prv, in);
+            return legacyFile != null;
+        }
+
+        header = EncFileHeader.read(in);
+        key = ABE.decryptKey(pub, prv, header);
+        if (key == null) {
+            return false;
+        }
+        noncePrefix = ChunkedAES.readNoncePrefix(in);
+        atFirstChunk = true;
+        return true;
+    }
+
+    /**
+     * @return true if the file can be read in parts without decrypting all of it
+     */
+    public boolean isSeekable() {
+        return header != null;
+    }
+
+    /**
+     * @return Length of the plaintext in bytes
+     */
+    public long length() {
+        if (legacyFile != null) {
+            return legacyFile.length;
+        }
+        return ChunkedAES.plaintextLength(size - header.length());
+    }
+
+    /**
+     * Decrypts part of the file to a stream
+     * @param start Offset of the first plaintext byte to write
+     * @param length Number of plaintext bytes to write
+     * @param out Stream to write to, not closed
+     * @throws IOException If the file could not be read or fails authentication
+     */
+    public void write(long start, long length, OutputStream out) throws IOException {
+        if (length <= 0) {
+            return;
+        }
+        if (legacyFile != null) {
+            out.write(legacyFile, (int) start, (int) length);
+            return;
+        }
+
+        long firstChunk = start / ChunkedAES.CHUNK_SIZE;
+        long lastChunk = (start + length - 1) / ChunkedAES.CHUNK_SIZE;
+        if (!atFirstChunk || firstChunk > 0) {
+            long offset = header.length() + ChunkedAES.chunkOffset(firstChunk);
+            if (channel != null) {
+                channel.seek(offset);
+                in = Channels.newInputStream(channel);
+            } else {
+                ByteBuffer buf = buffer.duplicate();
+                buf.position(buf.position() + (int) offset);
+                in = new ABE.ByteBufferInputStream(buf);
+            }
+        }
+        if (channel != null) {
+            // Fetch no more than the chunks needed
+            channel.setFetchSize((int) Math.min(MAX_FETCH_SIZE, (lastChunk - firstChunk + 1) * ChunkedAES.ENC_CHUNK_SIZE));
+        }
+        atFirstChunk = false;
+        try {
+            ChunkedAES.decryptChunks(key, noncePrefix, in, firstChunk, ChunkedAES.chunkCount(size - header.length()),
+                    start - firstChunk * ChunkedAES.CHUNK_SIZE, length, out);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Encrypted file failed authentication", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
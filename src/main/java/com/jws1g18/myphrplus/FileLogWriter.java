@@ -0,0 +1,311 @@
+package com.jws1g18.myphrplus;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.WriteBatch;
+
+import org.slf4j.Logger;
+
+/**
+ * Write behind writer for file access logs, so downloads do not wait on a
+ * Firestore write.
+ *
+ * Logs are queued in memory and a background thread commits them to
+ * files/{ref}/logs in batches. Each log is given its document ID when it is
+ * queued, so writing a log more than once is harmless. If the queue is full or
+ * a commit fails or is slow, logs are appended to a local spill file and
+ * replayed to Firestore later, including after a restart. Queued logs are
+ * flushed when the writer is closed.
+ *
+ * Spilled logs only survive a restart if the spill file is on a persistent
+ * disk. On App Engine the temporary directory is held in the instances memory,
+ * so there spilled logs are lost with the instance.
+ */
+public class FileLogWriter {
+    static final int QUEUE_CAPACITY = 10000;
+    static final int BATCH_SIZE = 500;
+    static final long COMMIT_TIMEOUT_MS = 10 * 1000;
+    static final long REPLAY_INTERVAL_MS = 30 * 1000;
+    static final long CLOSE_TIMEOUT_MS = 15 * 1000;
+
+    private final Firestore db;
+    private final Logger logger;
+    private final Path spillFile;
+    private final Path replayFile;
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final BlockingQueue<Log> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Object spillLock = new Object();
+    private final Thread flusher;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates a writer and starts its background flusher
+     * @param db Firestore to write logs to
+     * @param logger
+     * @param spillFile File to append logs to when they cannot be written to Firestore
+     */
+    public FileLogWriter(Firestore db, Logger logger, Path spillFile) {
+        this.db = db;
+        this.logger = logger;
+        this.spillFile = spillFile;
+        this.replayFile = spillFile.resolveSibling(spillFile.getFileName() + ".replay");
+        if (System.getenv("GAE_ENV") != null && isTemporary(spillFile)) {
+            logger.error("File log spill file " + spillFile + " is not persistent, spilled logs are lost on restart");
+        }
+        this.flusher = DaemonThreads.named("file-log-writer").newThread(this::run);
+        this.flusher.start();
+    }
+
+    /**
+     * Queues a log to be written to a files logs
+     * @param fileRef File reference
+     * @param data Log document data
+     */
+    public void log(String fileRef, Map<String, Object> data) {
+        String id = logs(fileRef).document().getId();
+        Log log = new Log(fileRef, id, data);
+        if (closed || !queue.offer(log)) {
+            // Never drop a log, keep it on disk until it can be written
+            spill(List.of(log));
+        } else if (closed && queue.remove(log)) {
+            // Closed between the check and the offer, after close drained the queue
+            spill(List.of(log));
+        }
+    }
+
+    /**
+     * Stops the flusher, writing queued logs to Firestore or the spill file
+     */
+    public void close() {
+        // The flusher notices within a second and empties the queue before stopping
+        closed = true;
+        try {
+            flusher.join(CLOSE_TIMEOUT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Anything the flusher did not get to is kept for the next start
+        List<Log> remaining = new ArrayList<>();
+        queue.drainTo(remaining);
+        if (!remaining.isEmpty()) {
+            spill(remaining);
+        }
+    }
+
+    private void run() {
+        long nextReplay = 0;
+        List<Log> batch = new ArrayList<>(BATCH_SIZE);
+        while (!closed || !queue.isEmpty()) {
+            try {
+                if (System.currentTimeMillis() >= nextReplay && !closed) {
+                    replay();
+                    nextReplay = System.currentTimeMillis() + REPLAY_INTERVAL_MS;
+                }
+                Log first = closed ? queue.poll() : queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                if (!commit(batch)) {
+                    spill(batch);
+                    // Firestore is struggling, give it time before replaying
+                    nextReplay = System.currentTimeMillis() + REPLAY_INTERVAL_MS;
+                }
+                batch.clear();
+            } catch (InterruptedException e) {
+                if (!batch.isEmpty()) {
+                    spill(batch);
+                    batch.clear();
+                }
+                return;
+            } catch (RuntimeException e) {
+                logger.error("File log writer failed", e);
+                if (!batch.isEmpty()) {
+                    spill(batch);
+                    batch.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits logs to Firestore in one batch
+     * @return true if the commit succeeded in time
+     */
+    private boolean commit(List<Log> logs) {
+        WriteBatch batch = db.batch();
+        for (Log log : logs) {
+            batch.set(logs(log.fileRef).document(log.id), log.data);
+        }
+        try {
+            batch.commit().get(COMMIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException | TimeoutException e) {
+            logger.error("Could not write " + logs.size() + " file logs", e);
+            return false;
+        }
+    }
+
+    /**
+     * Appends logs to the spill file and forces them to disk
+     */
+    private void spill(List<Log> logs) {
+        StringBuilder lines = new StringBuilder();
+        try {
+            for (Log log : logs) {
+                lines.append(mapper.writeValueAsString(log.toJson())).append('\n');
+            }
+        } catch (IOException e) {
+            logger.error("Could not serialise file logs", e);
+            return;
+        }
+        synchronized (spillLock) {
+            try (FileChannel channel = FileChannel.open(spillFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                ByteBuffer buf = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+                while (buf.hasRemaining()) {
+                    channel.write(buf);
+                }
+                channel.force(false);
+            } catch (IOException e) {
+                logger.error("Could not spill " + logs.size() + " file logs to " + spillFile, e);
+            }
+        }
+    }
+
+    /**
+     * Writes spilled logs to Firestore. The spill file is moved aside first so new
+     * logs can be spilled while it is replayed, the moved file is only deleted
+     * once all of its logs have been committed.
+     */
+    private void replay() {
+        synchronized (spillLock) {
+            try {
+                if (!Files.exists(replayFile)) {
+                    if (!Files.exists(spillFile)) {
+                        return;
+                    }
+                    Files.move(spillFile, replayFile, StandardCopyOption.ATOMIC_MOVE);
+                }
+            } catch (IOException e) {
+                logger.error("Could not move spilled file logs for replay", e);
+                return;
+            }
+        }
+
+        List<Log> batch = new ArrayList<>(BATCH_SIZE);
+        try (BufferedReader reader = Files.newBufferedReader(replayFile, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                try {
+                    batch.add(Log.fromJson(mapper.readValue(line, new TypeReference<Map<String, Object>>() {})));
+                } catch (IOException | RuntimeException e) {
+                    // A torn line from a crash mid write, nothing more can be recovered from it
+                    logger.error("Skipping unreadable spilled file log", e);
+                    continue;
+                }
+                if (batch.size() == BATCH_SIZE) {
+                    if (!commit(batch)) {
+                        return;
+                    }
+                    batch.clear();
+                }
+            }
+            if (!batch.isEmpty() && !commit(batch)) {
+                return;
+            }
+        } catch (IOException e) {
+            logger.error("Could not read spilled file logs", e);
+            return;
+        }
+        try {
+            Files.delete(replayFile);
+            logger.info("Replayed spilled file logs");
+        } catch (IOException e) {
+            logger.error("Could not delete replayed file logs", e);
+        }
+    }
+
+    /**
+     * @return true if the path is under the temporary directory
+     */
+    static boolean isTemporary(Path path) {
+        Path tmp = Path.of(System.getProperty("java.io.tmpdir")).toAbsolutePath().normalize();
+        return path.toAbsolutePath().normalize().startsWith(tmp);
+    }
+
+    private CollectionReference logs(String fileRef) {
+        return db.collection("files").document(fileRef).collection("logs");
+    }
+
+    private static class Log {
+        final String fileRef;
+        final String id;
+        final Map<String, Object> data;
+
+        Log(String fileRef, String id, Map<String, Object> data) {
+            this.fileRef = fileRef;
+            this.id = id;
+            this.data = data;
+        }
+
+        /**
+         * Timestamps are kept as microseconds since the epoch in the spill file, as
+         * they do not survive a round trip through JSON
+         */
+        Map<String, Object> toJson() {
+            Map<String, Object> values = new HashMap<>();
+            Map<String, Long> timestamps = new HashMap<>();
+            for (Map.Entry<String, Object> entry : data.entrySet()) {
+                if (entry.getValue() instanceof Timestamp) {
+                    Timestamp time = (Timestamp) entry.getValue();
+                    timestamps.put(entry.getKey(), time.getSeconds() * 1000000 + time.getNanos() / 1000);
+                } else {
+                    values.put(entry.getKey(), entry.getValue());
+                }
+            }
+            return Map.of("fileRef", fileRef, "id", id, "data", values, "timestamps", timestamps);
+        }
+
+        @SuppressWarnings("unchecked")
+        static Log fromJson(Map<String, Object> json) {
+            Map<String, Object> data = new HashMap<>((Map<String, Object>) json.get("data"));
+            Map<String, Object> timestamps = (Map<String, Object>) json.get("timestamps");
+            if (timestamps != null) {
+                for (Map.Entry<String, Object> entry : timestamps.entrySet()) {
+                    data.put(entry.getKey(), Timestamp.ofTimeMicroseconds(((Number) entry.getValue()).longValue()));
+                }
+            }
+            return new Log((String) json.get("fileRef"), (String) json.get("id"), data);
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package com.jws1g18.myphrplus;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Blob store on the local filesystem, each bucket is a directory under the root.
+ * Object names are hashed to directory names, as they may contain any character,
+ * and each generation of an object is a file in its directory named by its
+ * generation. Generations come from a counter that never goes backwards, so a
+ * replaced object always has a new generation. Ranged reads are copied with
+ * FileChannel.transferTo, so the kernel can copy them without passing through
+ * the heap.
+ */
+public class FileSystemBlobStore implements BlobStore {
+    static final String TMP_SUFFIX = ".tmp";
+
+    private final Path root;
+    // Last generation given out, kept ahead of the clock so it keeps increasing across restarts
+    private final AtomicLong generations = new AtomicLong();
+
+    /**
+     * @param root Directory to keep buckets in, created if it does not exist
+     * @throws IOException
+     */
+    public FileSystemBlobStore(Path root) throws IOException {
+        this.root = root;
+        Files.createDirectories(root);
+    }
+
+    @Override
+    public void createBucket(String bucketName) throws IOException {
+        Path bucket = bucket(bucketName);
+        if (Files.exists(bucket)) {
+            throw new IOException("Bucket " + bucketName + " already exists");
+        }
+        Files.createDirectories(bucket);
+    }
+
+    @Override
+    public boolean put(String bucketName, String objectName, String type, Writer writer) throws IOException {
+        Path bucket = existingBucket(bucketName);
+        // Written under a temporary name so readers never see part of an object
+        Path tmp = bucket.resolve(UUID.randomUUID() + TMP_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+                    OutputStream out = Channels.newOutputStream(channel)) {
+                if (!writer.write(out)) {
+                    return false;
+                }
+            }
+            Path dir = Files.createDirectories(object(bucketName, objectName));
+            long generation = generations.updateAndGet(last -> Math.max(last + 1, System.currentTimeMillis() * 1000));
+            Files.move(tmp, dir.resolve(Long.toString(generation)), StandardCopyOption.ATOMIC_MOVE);
+            // Open readers of older generations keep reading them until they close
+            for (long older : generations(dir)) {
+                if (older < generation) {
+                    Files.deleteIfExists(dir.resolve(Long.toString(older)));
+                }
+            }
+            return true;
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public StoredObject stat(String bucketName, String objectName) throws IOException {
+        Path dir = object(bucketName, objectName);
+        for (int attempt = 0; attempt < 3; attempt++) {
+            long generation = -1;
+            for (long found : generations(dir)) {
+                generation = Math.max(generation, found);
+            }
+            if (generation < 0) {
+                return null;
+            }
+            try {
+                return new StoredObject(bucketName, objectName, Files.size(dir.resolve(Long.toString(generation))),
+                        generation);
+            } catch (NoSuchFileException e) {
+                // Replaced since it was listed, look again
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Reader open(StoredObject object) throws IOException {
+        FileChannel channel = FileChannel.open(file(object), StandardOpenOption.READ);
+        return new Reader() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                return channel.read(dst);
+            }
+
+            @Override
+            public void seek(long position) throws IOException {
+                channel.position(position);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    // Nothing was written, so nothing is lost
+                }
+            }
+        };
+    }
+
+    @Override
+    public byte[] getAll(String bucketName, String objectName) throws IOException {
+        StoredObject object = stat(bucketName, objectName);
+        if (object == null) {
+            throw new NoSuchFileException("Object " + objectName + " not found");
+        }
+        return Files.readAllBytes(file(object));
+    }
+
+    @Override
+    public void copyTo(StoredObject object, long position, long count, WritableByteChannel out) throws IOException {
+        try (FileChannel channel = FileChannel.open(file(object), StandardOpenOption.READ)) {
+            long copied = 0;
+            while (copied < count) {
+                long n = channel.transferTo(position + copied, count - copied, out);
+                if (n <= 0) {
+                    throw new IOException("Object " + object.objectName + " is shorter than expected");
+                }
+                copied += n;
+            }
+        }
+    }
+
+    @Override
+    public boolean delete(String bucketName, String objectName) throws IOException {
+        Path dir = object(bucketName, objectName);
+        boolean deleted = false;
+        for (long generation : generations(dir)) {
+            deleted |= Files.deleteIfExists(dir.resolve(Long.toString(generation)));
+        }
+        try {
+            Files.deleteIfExists(dir);
+        } catch (DirectoryNotEmptyException e) {
+            // Replaced while it was being deleted, the new generation is kept
+        }
+        return deleted;
+    }
+
+    private Path bucket(String bucketName) throws IOException {
+        Path bucket = root.resolve(bucketName).normalize();
+        if (!bucket.getParent().equals(root.normalize())) {
+            throw new IOException("Invalid bucket name " + bucketName);
+        }
+        return bucket;
+    }
+
+    private Path existingBucket(String bucketName) throws IOException {
+        Path bucket = bucket(bucketName);
+        if (!Files.isDirectory(bucket)) {
+            throw new IOException("Bucket " + bucketName + " not found");
+        }
+        return bucket;
+    }
+
+    private Path object(String bucketName, String objectName) throws IOException {
+        return existingBucket(bucketName).resolve(hash(objectName));
+    }
+
+    private Path file(StoredObject object) throws IOException {
+        return object(object.bucketName, object.objectName).resolve(Long.toString(object.generation));
+    }
+
+    /**
+     * @return Generations stored in an objects directory, empty if it does not exist
+     */
+    private static List<Long> generations(Path dir) throws IOException {
+        List<Long> generations = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                try {
+                    generations.add(Long.parseLong(file.getFileName().toString()));
+                } catch (NumberFormatException e) {
+                    // Not a generation
+                }
+            }
+        } catch (NoSuchFileException | NotDirectoryException e) {
+            // No object
+        }
+        return generations;
+    }
+
+    private static String hash(String objectName) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(objectName.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -1,14 +1,18 @@
 package com.jws1g18.myphrplus;
 
+import com.jws1g18.myphrplus.DTOS.User;
+
 import org.springframework.security.authentication.AbstractAuthenticationToken;
 
 /**
  * Authentication token that holds a firebase user ID and the token. 
+ * Also holds the users document once it has been loaded, so it is only read once per request.
  */
 public class FirebaseAuthenticationToken extends AbstractAuthenticationToken{
     private static final long serialVersionUID = -155623123571721302L;
     private final Object principal;
 	private Object credentials;
+	private transient User user;
 
 
     /**
@@ -33,6 +37,17 @@ public class FirebaseAuthenticationToken extends AbstractAuthenticationToken{
         return this.principal;
     }
 
+    /**
+     * @return The users document, or null if it has not been loaded yet
+     */
+    public User getUser() {
+        return this.user;
+    }
+
+    public void setUser(User user) {
+        this.user = user;
+    }
+
     @Override
 	public void eraseCredentials() {
 		super.eraseCredentials();
@@ -1,75 +1,106 @@
 package com.jws1g18.myphrplus;
 
-import java.util.HashMap;
-import java.util.Map;
-
-import com.google.cloud.storage.BlobId;
-import com.google.cloud.storage.BlobInfo;
-import com.google.cloud.storage.Bucket;
-import com.google.cloud.storage.BucketInfo;
-import com.google.cloud.storage.Storage;
-import com.google.cloud.storage.StorageClass;
-import com.google.cloud.storage.StorageException;
-import com.google.cloud.storage.StorageOptions;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.springframework.core.io.ByteArrayResource;
 
+/**
+ * Storage of encrypted files. Files are kept in a BlobStore, google cloud
+ * storage unless another store is given, with an optional local cache in front
+ * of it.
+ */
 public class GCPCloudStorage {
-    Storage storage;
-    String projectID = "myphrplus-backend";
+    BlobStore store;
     Logger logger;
+    BlobCache cache;
 
     public GCPCloudStorage(Logger logger) {
-        this.storage = StorageOptions.getDefaultInstance().getService();
+        this(logger, new GcsBlobStore());
+    }
 
+    public GCPCloudStorage(Logger logger, BlobStore store) {
+        this.store = store;
         this.logger = logger;
     }
 
+    /**
+     * Keeps downloaded objects in a local cache
+     * @param cache Cache to use, or null to always download from the store
+     */
+    public void setCache(BlobCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return The local object cache, or null if it is not enabled
+     */
+    public BlobCache getCache() {
+        return this.cache;
+    }
+
     /**
      * Creates a bucket given a bucket name
-     * 
+     *
      * @param bucketName
-     * @return The created bucket
+     * @return The created bucket, or null if it could not be created
      */
     public String createBucket(String bucketName) {
         bucketName += "-myphrplus-backend";
         logger.info("Creating bucket " + bucketName);
-
-        StorageClass storageClass = StorageClass.STANDARD;
-        String location = "EUROPE-WEST2"; // London
-
-        Bucket bucket = this.storage
-                .create(BucketInfo.newBuilder(bucketName).setStorageClass(storageClass).setLocation(location).build());
-
-        // System.out.println("Created bucket "+ bucket.getName());
-
-        return bucket.getName();
+        try{
+            this.store.createBucket(bucketName);
+            return bucketName;
+        }catch(IOException e){
+            logger.error("Could not create bucket " + bucketName, e);
+            return null;
+        }
     }
 
     /**
      * Uploads an a Multi Part File to google cloud storage
-     * 
+     *
      * @param bucketName
      * @param objectName ID of the GCP object
      * @param filePath   path to file on the system
      */
     public FunctionResponse uploadFile(String bucketName, String objectName, byte[] file, String type) {
-        Map<String, String> metadata = new HashMap<>();
-        metadata.put("Content-Type", type);
-
-        BlobId blobId = BlobId.of(bucketName, objectName);
-        BlobInfo blobInfo = BlobInfo.newBuilder(blobId).setMetadata(metadata).build();
-
         try{
-            this.storage.create(blobInfo, file);
+            this.store.put(bucketName, objectName, type, file);
             return new FunctionResponse(true, "Upload successful");
-        }catch(StorageException e){
+        }catch(IOException e){
             logger.error("Bucket not found", e);
             return new FunctionResponse(false, "Upload failed");
         }
     }
 
+    /**
+     * Uploads a file as it is written, only a bounded amount of it is buffered at
+     * a time. The object is only created if the writer succeeds, a failed upload
+     * leaves nothing behind.
+     *
+     * @param bucketName
+     * @param objectName ID of the GCP object
+     * @param type       Content type of the file
+     * @param writer     Writes the file
+     * @return
+     */
+    public FunctionResponse uploadFile(String bucketName, String objectName, String type, BlobStore.Writer writer) {
+        try{
+            if(!this.store.put(bucketName, objectName, type, writer)){
+                return new FunctionResponse(false, "Upload failed");
+            }
+            return new FunctionResponse(true, "Upload successful");
+        }catch(IOException | RuntimeException e){
+            logger.error("Upload to " + bucketName + " failed", e);
+            // The object may exist if the failure came after it was finalised
+            deleteFile(bucketName, objectName);
+            return new FunctionResponse(false, "Upload failed");
+        }
+    }
+
     /**
      * Downloads an object from cloud storage
      * @param bucketName bucket to download from
@@ -78,14 +109,66 @@ public class GCPCloudStorage {
      */
     public ByteArrayResource downloadObject(String bucketName, String objectName) {
         try{
-            BlobId blob = BlobId.of(bucketName, objectName);
-            return new ByteArrayResource(storage.readAllBytes(blob));
-        }catch(StorageException e){
+            if(this.cache != null){
+                BlobStore.StoredObject object = this.store.stat(bucketName, objectName);
+                ByteBuffer cached = object == null ? null : getCached(object);
+                if(cached != null){
+                    byte[] bytes = new byte[cached.remaining()];
+                    cached.get(bytes);
+                    return new ByteArrayResource(bytes);
+                }
+            }
+            return new ByteArrayResource(this.store.getAll(bucketName, objectName));
+        }catch(IOException e){
             logger.error("File not found", e);
             return null;
         }
     }
 
+    /**
+     * Gets an objects metadata, for use when streaming an object
+     * @param bucketName bucket the object is in
+     * @param objectName file reference of the object
+     * @return The object, or null if it does not exist
+     */
+    public BlobStore.StoredObject getObject(String bucketName, String objectName) {
+        try{
+            return this.store.stat(bucketName, objectName);
+        }catch(IOException e){
+            logger.error("File not found", e);
+            return null;
+        }
+    }
+
+    /**
+     * Opens an object for streaming
+     * @param object Object to read
+     * @return Reader that must be closed
+     * @throws IOException
+     */
+    public BlobStore.Reader openObject(BlobStore.StoredObject object) throws IOException {
+        return this.store.open(object);
+    }
+
+    /**
+     * Gets an object from the local cache. An object that is not cached is cached
+     * in the background, so the caller should read it from the store.
+     * @param object Object to get, including its generation
+     * @return Read only buffer over the object, or null if it is not cached or the
+     * cache is not enabled
+     */
+    public ByteBuffer getCached(BlobStore.StoredObject object) {
+        if(this.cache == null){
+            return null;
+        }
+        ByteBuffer cached = this.cache.get(object.bucketName, object.objectName, object.generation);
+        if(cached == null){
+            this.cache.fill(object.bucketName, object.objectName, object.generation, object.size,
+                out -> this.store.copyTo(object, 0, object.size, out));
+        }
+        return cached;
+    }
+
     /**
      * Deletes a file from cloud storage
      * @param bucketName Bucket to delete from
@@ -93,7 +176,35 @@ public class GCPCloudStorage {
      * @return
      */
     public boolean deleteFile(String bucketName, String objectName){
-        this.storage.delete(bucketName, objectName);
+        if(this.cache != null){
+            this.cache.remove(bucketName, objectName);
+        }
+        try{
+            this.store.delete(bucketName, objectName);
+        }catch(IOException e){
+            logger.error("Could not delete " + objectName + " from " + bucketName, e);
+        }
         return true;
     }
+
+    /**
+     * Deletes many files from cloud storage using batch requests
+     * @param bucketName Bucket to delete from
+     * @param objectNames File locations to delete
+     * @return true if every file was deleted or did not exist
+     */
+    public boolean deleteFiles(String bucketName, List<String> objectNames){
+        if(this.cache != null){
+            for(String objectName: objectNames){
+                this.cache.remove(bucketName, objectName);
+            }
+        }
+        try{
+            this.store.delete(bucketName, objectNames);
+            return true;
+        }catch(IOException e){
+            logger.error("Batch delete from " + bucketName + " failed", e);
+            return false;
+        }
+    }
 }
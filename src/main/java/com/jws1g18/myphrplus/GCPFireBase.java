@@ -1,12 +1,17 @@
 package com.jws1g18.myphrplus;
 
 import java.io.IOException;
+import java.nio.file.Path;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
@@ -18,14 +23,20 @@ import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.google.api.core.ApiFuture;
 import com.google.auth.oauth2.GoogleCredentials;
+import com.google.cloud.Timestamp;
 import com.google.cloud.firestore.CollectionReference;
 import com.google.cloud.firestore.DocumentReference;
 import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldMask;
+import com.google.cloud.firestore.FieldPath;
 import com.google.cloud.firestore.FieldValue;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.Query;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
 import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.Transaction;
+import com.google.cloud.firestore.WriteBatch;
 import com.google.cloud.firestore.WriteResult;
 import com.google.firebase.FirebaseApp;
 import com.google.firebase.FirebaseOptions;
@@ -40,11 +51,29 @@ import com.jws1g18.myphrplus.DTOS.User;
 import org.slf4j.Logger;
 
 public class GCPFireBase {
+    static final int GET_ALL_BATCH_SIZE = 100;
+    // Maximum number of writes in a Firestore batch
+    static final int WRITE_BATCH_SIZE = 500;
+    static final int MAX_NHS_UIDS = 10000;
+
     Firestore db;
     FirebaseAuth auth;
     Logger logger;
     Random rand;
     Helpers helper;
+    UserCache userCache;
+    FileLogWriter fileLogWriter;
+    AttributeIndex attributeIndex;
+
+    // NHS numbers of recently looked up patients, a patients user ID never changes
+    private final Map<String, String> nhsUids = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > MAX_NHS_UIDS;
+        }
+    });
 
     public GCPFireBase(Logger logger, Helpers helper) {
         GoogleCredentials credentials;
@@ -60,6 +89,8 @@ public class GCPFireBase {
 
         this.db = FirestoreClient.getFirestore();
         this.auth = FirebaseAuth.getInstance();
+        this.userCache = new UserCache(this.db, logger);
+        this.attributeIndex = new AttributeIndex(this.db, logger);
 
         this.logger = logger;
         this.rand = new Random();
@@ -70,6 +101,41 @@ public class GCPFireBase {
         return this.db;
     }
 
+    /**
+     * Starts writing file logs in the background rather than as part of the request
+     * @param spillFile File to keep logs in when they cannot be written to firestore
+     */
+    public void startFileLogWriter(Path spillFile) {
+        this.fileLogWriter = new FileLogWriter(this.db, logger, spillFile);
+    }
+
+    /**
+     * Stops listening for changes to cached users and attributes and flushes queued file logs
+     */
+    public void close() {
+        if (this.userCache != null) {
+            this.userCache.clear();
+        }
+        if (this.attributeIndex != null) {
+            this.attributeIndex.clear();
+        }
+        if (this.fileLogWriter != null) {
+            this.fileLogWriter.close();
+        }
+    }
+
+    /**
+     * Records a write to a users document so cached copies older than the write
+     * are not used
+     * @param uid User ID of the document written
+     * @param result Result of the write
+     * @return The result of the write
+     */
+    private WriteResult userWritten(String uid, WriteResult result) {
+        this.userCache.written(uid, result.getUpdateTime());
+        return result;
+    }
+
     /***
      * Adds a user to firestore
      * 
@@ -82,7 +148,7 @@ public class GCPFireBase {
     WriteResult addUser(Map<String, Object> data, String uid) throws InterruptedException, ExecutionException {
         DocumentReference docRef = this.db.collection("users").document(uid);
         ApiFuture<WriteResult> result = docRef.set(data);
-        return result.get();
+        return userWritten(uid, result.get());
     }
 
     /***
@@ -100,6 +166,95 @@ public class GCPFireBase {
         return query.get().get();
     }
 
+    /**
+     * Gets the NHS number index entry of a patient, holding their user ID and parent
+     * @param nhsNum NHS number of patient
+     * @return Reference to nhsIndex/{nhsNum}
+     */
+    DocumentReference nhsIndex(String nhsNum) {
+        return this.db.collection("nhsIndex").document(nhsNum);
+    }
+
+    /**
+     * Gets a patients document from their NHS number, using the NHS number index
+     * rather than querying every user
+     * @param nhsNum NHS number of patient
+     * @return Snapshot of the patients document, or null if no patient has the NHS number
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    DocumentSnapshot getPatientByNHSnum(String nhsNum) throws InterruptedException, ExecutionException {
+        String uid = nhsUids.get(nhsNum);
+        if (uid != null) {
+            DocumentSnapshot patient = getUserSnapshot(uid);
+            if (patient.exists() && nhsNum.equals(patient.getString("nhsnum"))) {
+                return patient;
+            }
+            // Patient was deleted, the NHS number may since have been registered again
+            nhsUids.remove(nhsNum);
+        }
+
+        DocumentSnapshot index = nhsIndex(nhsNum).get().get();
+        uid = index.exists() ? index.getString("uid") : indexLegacyPatient(nhsNum);
+        if (uid == null) {
+            return null;
+        }
+        DocumentSnapshot patient = getUserSnapshot(uid);
+        if (!patient.exists()) {
+            return null;
+        }
+        nhsUids.put(nhsNum, uid);
+        return patient;
+    }
+
+    /**
+     * Adds a patient registered before the NHS number index to the index
+     * @param nhsNum NHS number of patient
+     * @return User ID of the patient, or null if there is not exactly one patient with the NHS number
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    private String indexLegacyPatient(String nhsNum) throws InterruptedException, ExecutionException {
+        List<QueryDocumentSnapshot> docs = queryUsers("nhsnum", nhsNum).getDocuments();
+        if (docs.size() != 1) {
+            if (docs.size() > 1) {
+                logger.error("NHS num " + nhsNum + " is registered to " + docs.size() + " users");
+            }
+            return null;
+        }
+        QueryDocumentSnapshot doc = docs.get(0);
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("uid", doc.getId());
+        entry.put("parent", doc.getString("parent"));
+        try {
+            nhsIndex(nhsNum).create(entry).get();
+        } catch (ExecutionException e) {
+            // Already indexed by another request
+            logger.info("NHS num " + nhsNum + " already indexed");
+        }
+        return doc.getId();
+    }
+
+    /**
+     * Moves a patient to a new parent, updating their NHS number index entry with them
+     * @param patient User ID of patient
+     * @param parent User ID of new parent
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    private void setPatientParent(String patient, String parent) throws InterruptedException, ExecutionException {
+        String nhsNum = getUserSnapshot(patient).getString("nhsnum");
+        WriteBatch batch = this.db.batch();
+        batch.update(this.db.collection("users").document(patient), "parent", parent);
+        if (nhsNum != null) {
+            Map<String, Object> entry = new HashMap<>();
+            entry.put("uid", patient);
+            entry.put("parent", parent);
+            batch.set(nhsIndex(nhsNum), entry);
+        }
+        userWritten(patient, batch.commit().get().get(0));
+    }
+
     /***
      * Adds a patient to the firestore, randomly assigns them a DP and a DR
      * 
@@ -134,20 +289,30 @@ public class GCPFireBase {
         data.put("files", new ArrayList<String>());
         data.put("reminders", new ArrayList<String>());
 
-        // Update parent with child info
-        try {
-            updateArray(dr, "patients", uid);
-        } catch (InterruptedException ex) {
-            logger.error("Updating parent information for  " + user.name + " failed", ex);
-            return new FunctionResponse(false, "Updating parent information failed " + ex.getMessage());
-        } catch (ExecutionException ex) {
-            logger.error("Updating parent information for  " + user.name + " failed", ex);
-            return new FunctionResponse(false, "Updating parent information failed " + ex.getMessage());
-        }
+        Map<String, Object> entry = new HashMap<>();
+        entry.put("uid", uid);
+        entry.put("parent", dr);
 
-        // Add to firestore
+        // Add to firestore, index the NHS num and update parent with child info together,
+        // the NHS num is only registered if it is not already in the index
+        DocumentReference indexRef = nhsIndex(user.nhsnum);
         try {
-            addUser(data, uid);
+            boolean added = this.db.runTransaction(transaction -> {
+                if (transaction.get(indexRef).get().exists()) {
+                    return false;
+                }
+                transaction.create(indexRef, entry);
+                transaction.set(this.db.collection("users").document(uid), data);
+                transaction.update(this.db.collection("users").document(dr), "patients", FieldValue.arrayUnion(uid));
+                return true;
+            }).get();
+            if (!added) {
+                return new FunctionResponse(false, "NHS Number has already been registered");
+            }
+            this.userCache.invalidate(uid);
+            this.userCache.invalidate(dr);
+            nhsUids.put(user.nhsnum, uid);
+            this.attributeIndex.changed(dp.bucketName, uid, attributes);
             return new FunctionResponse(true, dp.bucketName);
         } catch (InterruptedException ex) {
             logger.error("Adding user " + user.name + " failed", ex);
@@ -167,9 +332,8 @@ public class GCPFireBase {
      * @throws ExecutionException
      */
     User getUserObject(String uid) throws InterruptedException, ExecutionException {
-        DocumentReference docRef = this.db.collection("users").document(uid);
-        ApiFuture<DocumentSnapshot> future = docRef.get();
-        DocumentSnapshot document = future.get();
+        // A new object is made from the cached snapshot each time so callers can modify it
+        DocumentSnapshot document = getUserSnapshot(uid);
         if (document.exists()) {
             User user = document.toObject(User.class);
             return user;
@@ -179,6 +343,17 @@ public class GCPFireBase {
         }
     }
 
+    /**
+     * Gets a users document, from the user cache if it is cached
+     * @param uid Firebase auth id of the user
+     * @return Snapshot of the users document, which may not exist
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    DocumentSnapshot getUserSnapshot(String uid) throws InterruptedException, ExecutionException {
+        return this.userCache.get(uid);
+    }
+
     /***
      * Gets the user IDs of everyone included in the Patients access policy
      * @param accessPolicy List defining the basic access policy elements
@@ -198,17 +373,19 @@ public class GCPFireBase {
                 uids.add(getParent(patient.parent));
             } else if(access.equals("custom")){
                 List<String> customPolicyList = Arrays.asList(customAccessPolicy.split(","));
-                QuerySnapshot query;
-                // Get every user within the same bucket as user
+                List<DocumentSnapshot> docs;
+                // Find users within the same bucket as user that have every attribute specified
                 try{
-                    query = queryUsers("bucketName", patient.bucketName);
+                    List<String> found = new ArrayList<>(attributeIndex.find(patient.bucketName, customPolicyList));
+                    docs = getDocuments("users", found, "attributes", "bucketName");
                 } catch(InterruptedException | ExecutionException ex){
                     break;
-                } 
-                // Check if the returned documents contain every attribute specifed
-                for(QueryDocumentSnapshot doc: query.getDocuments()){
+                }
+                // Check the index against the users current documents
+                for(DocumentSnapshot doc: docs){
                     List<String> attrs = (List<String>) doc.get("attributes");
-                    if(attrs.containsAll(customPolicyList)){
+                    if(doc.exists() && patient.bucketName.equals(doc.getString("bucketName"))
+                            && attrs != null && attrs.containsAll(customPolicyList)){
                         uids.add(doc.getId());
                     }
                 }
@@ -217,9 +394,77 @@ public class GCPFireBase {
         return uids;
     }
     
-    public String addFile(Map<String, Object> file) throws InterruptedException, ExecutionException{
-        ApiFuture<DocumentReference> future = this.db.collection("files").add(file);
-        return future.get().getId();
+    /**
+     * Adds a file to firestore and adds its reference to the files of every user
+     * it is shared with. The file and up to WRITE_BATCH_SIZE - 1 users are written
+     * in one batch, larger shares are split into further batches. If any batch
+     * fails the batches already committed are undone. The file keeps a count of
+     * the users it is shared with, for use when deleting.
+     * @param file File information
+     * @param uids User IDs to share the file with
+     * @return File reference if successful
+     */
+    public FunctionResponse addFileAndShare(Map<String, Object> file, List<String> uids){
+        DocumentReference fileDocRef = this.db.collection("files").document();
+        List<String> recipients = new ArrayList<>(new LinkedHashSet<>(uids));
+        // Every log of a new file has a timestamp
+        file = new HashMap<>(file);
+        file.put("logsTimestamped", true);
+        file.put("refCount", recipients.size());
+
+        List<String> committed = new ArrayList<>();
+        boolean fileCommitted = false;
+        int next = 0;
+        try {
+            while(!fileCommitted || next < recipients.size()){
+                WriteBatch batch = this.db.batch();
+                int ops = 0;
+                if(!fileCommitted){
+                    batch.set(fileDocRef, file);
+                    ops++;
+                }
+                int start = next;
+                while(next < recipients.size() && ops < WRITE_BATCH_SIZE){
+                    batch.update(this.db.collection("users").document(recipients.get(next)), "files", FieldValue.arrayUnion(fileDocRef.getId()));
+                    next++;
+                    ops++;
+                }
+                List<WriteResult> results = batch.commit().get();
+                fileCommitted = true;
+                for(String uid: recipients.subList(start, next)){
+                    userWritten(uid, results.get(0));
+                    committed.add(uid);
+                }
+            }
+            return new FunctionResponse(true, fileDocRef.getId());
+        } catch (InterruptedException | ExecutionException ex){
+            logger.error("Adding file and sharing with " + recipients.size() + " users failed", ex);
+            if(fileCommitted){
+                undoAddFile(fileDocRef, committed);
+            }
+            return new FunctionResponse(false, "Adding file reference to firestore failed");
+        }
+    }
+
+    /**
+     * Removes a file added by addFileAndShare after a later batch failed
+     */
+    private void undoAddFile(DocumentReference fileDocRef, List<String> uids){
+        try {
+            for(int i = 0; i < uids.size(); i += WRITE_BATCH_SIZE){
+                WriteBatch batch = this.db.batch();
+                for(String uid: uids.subList(i, Math.min(i + WRITE_BATCH_SIZE, uids.size()))){
+                    batch.update(this.db.collection("users").document(uid), "files", FieldValue.arrayRemove(fileDocRef.getId()));
+                }
+                WriteResult result = batch.commit().get().get(0);
+                for(String uid: uids.subList(i, Math.min(i + WRITE_BATCH_SIZE, uids.size()))){
+                    userWritten(uid, result);
+                }
+            }
+            fileDocRef.delete().get();
+        } catch (InterruptedException | ExecutionException ex){
+            logger.error("Could not undo adding file " + fileDocRef.getId(), ex);
+        }
     }
 
     /***
@@ -228,11 +473,9 @@ public class GCPFireBase {
      * @return Null if no parent found, parent uid if found
      */
     String getParent(String uid){
-        DocumentReference docRef = this.db.collection("users").document(uid);
-        ApiFuture<DocumentSnapshot> future = docRef.get();
         DocumentSnapshot document;
         try{
-            document = future.get();
+            document = getUserSnapshot(uid);
         } catch (InterruptedException | ExecutionException ex){
             logger.error("Could not get parent", ex);
             return null;
@@ -264,6 +507,49 @@ public class GCPFireBase {
         }
     }
 
+    /**
+     * Checks a user can be deleted, so nothing is removed for an account that cannot be
+     * @param userID
+     * @return True if the account can be deleted, otherwise the reason it cannot
+     */
+    public FunctionResponse canDeleteUser(String userID) {
+        DocumentSnapshot userDoc;
+        try {
+            userDoc = this.db.collection("users").document(userID).get().get();
+        } catch (InterruptedException | ExecutionException ex) {
+            logger.error("Getting user "+ userID +" failed", ex);
+            return new FunctionResponse(false, "Failed to find user");
+        }
+        return canDeleteUser(userDoc);
+    }
+
+    private FunctionResponse canDeleteUser(DocumentSnapshot userDoc) {
+        if (!userDoc.exists()) {
+            return new FunctionResponse(false, "Failed to find user");
+        }
+        String role = userDoc.getString("role");
+        if ("DP".equals(role) || "admin".equals(role)) {
+            return new FunctionResponse(false, "Cannot delete account due to role. Contact System Admin");
+        } else if ("Patient".equals(role)) {
+            return new FunctionResponse(true, "Account can be deleted");
+        } else if ("DR".equals(role)) {
+            QuerySnapshot qs;
+            try {
+                qs = this.db.collection("users").whereEqualTo("bucketName", userDoc.get("bucketName")).whereEqualTo("role", "DR").get().get();
+            } catch (InterruptedException | ExecutionException e) {
+                logger.error("Query to find DRs in same bucket failed", e);
+                return new FunctionResponse(false, "Query to reasign patients failed");
+            }
+            if (qs.size() <= 1) {
+                return new FunctionResponse(false, "Last DR registered to DP, cannot delete account. Please contact System Admin");
+            }
+            return new FunctionResponse(true, "Account can be deleted");
+        } else {
+            logger.error("Request to delete with invalid role");
+            return new FunctionResponse(false, "invalid role");
+        }
+    }
+
     /**
      * Deletes a user from the firestore given their user ID
      * @param userID
@@ -278,16 +564,28 @@ public class GCPFireBase {
             logger.error("Getting user "+ userID +" failed", ex);
             return new FunctionResponse(false, "Failed to find user");
         }
-        String role = userDoc.getString("role");
-        if(role.equals("DP") || role.equals("admin")){
-            return new FunctionResponse(false, "Cannot delete account due to role. Contact System Admin");
+        FunctionResponse deletable = canDeleteUser(userDoc);
+        if (!deletable.successful()) {
+            return deletable;
         }
-        else if(role.equals("Patient")){
+        String role = userDoc.getString("role");
+        if(role.equals("Patient")){
             String parent = userDoc.getString("parent");
             try{
-                this.db.collection("users").document(parent).update("patients", FieldValue.arrayRemove(userID)).get();
-                userDocRef.delete().get();
+                String nhsNum = userDoc.getString("nhsnum");
+                WriteBatch batch = this.db.batch();
+                batch.update(this.db.collection("users").document(parent), "patients", FieldValue.arrayRemove(userID));
+                batch.delete(userDocRef);
+                if (nhsNum != null) {
+                    batch.delete(nhsIndex(nhsNum));
+                    nhsUids.remove(nhsNum);
+                }
+                List<WriteResult> results = batch.commit().get();
+                userWritten(parent, results.get(0));
+                userWritten(userID, results.get(1));
+                indexDeleted(userDoc.getString("bucketName"), userID);
                 GCPSecretManager.destroySecretVersion(userID);
+                KeyCache.invalidatePrivateKey(userID);
                 this.auth.deleteUser(userID);
                 return new FunctionResponse(true, "Account Deleted");
             } catch (InterruptedException | ExecutionException ex){
@@ -300,7 +598,7 @@ public class GCPFireBase {
                 logger.error("Error whilst removing private key", ex);
                 return new FunctionResponse(false, "Error whilst deleting user");
             }
-        } else if(role.equals("DR")){
+        } else {
             String parent = userDoc.getString("parent");
             //Find all DRs in same bucket (need to reassign patients)
             QuerySnapshot qs;
@@ -319,7 +617,7 @@ public class GCPFireBase {
             //Assign patient to new DR and new DR to patients
             for(String patient: (ArrayList<String>) userDoc.get("patients")){
                 try {
-                    updateField("users", patient, "parent", newDR);
+                    setPatientParent(patient, newDR);
                 } catch (InterruptedException | ExecutionException e) {
                     logger.error("Couldnt update user:" + patient + " with new parent", e);
                 }
@@ -330,9 +628,11 @@ public class GCPFireBase {
                 }
             }
             try {
-                this.db.collection("users").document(parent).update("dataRequesters", FieldValue.arrayRemove(userID)).get();
-                userDocRef.delete().get();
+                userWritten(parent, this.db.collection("users").document(parent).update("dataRequesters", FieldValue.arrayRemove(userID)).get());
+                userWritten(userID, userDocRef.delete().get());
+                indexDeleted(userDoc.getString("bucketName"), userID);
                 GCPSecretManager.destroySecretVersion(userID);
+                KeyCache.invalidatePrivateKey(userID);
                 this.auth.deleteUser(userID);
                 return new FunctionResponse(true, "Delete successful");
             } catch (InterruptedException | ExecutionException e) {
@@ -345,9 +645,6 @@ public class GCPFireBase {
                 logger.error("Error whilst removing private key", e);
                 return new FunctionResponse(false, "Error whilst deleting user");
             }
-        } else{
-            logger.error("Request to delete with invalid role");
-            return new FunctionResponse(false, "invalid role");
         }
     }
 
@@ -363,7 +660,7 @@ public class GCPFireBase {
             throws InterruptedException, ExecutionException {
         DocumentReference docRef = this.db.collection("users").document(userID);
         ApiFuture<WriteResult> future = docRef.update(array, FieldValue.arrayUnion(value));
-        return future.get();
+        return userWritten(userID, future.get());
     }
 
     /**
@@ -379,7 +676,11 @@ public class GCPFireBase {
     public WriteResult updateField(String collection, String document, String field, String value) throws InterruptedException, ExecutionException{
         DocumentReference docRef = this.db.collection(collection).document(document);
         ApiFuture<WriteResult> future = docRef.update(field, value);
-        return future.get();
+        WriteResult result = future.get();
+        if (collection.equals("users")) {
+            userWritten(document, result);
+        }
+        return result;
     }
 
     /***
@@ -405,7 +706,7 @@ public class GCPFireBase {
      */
     public FunctionResponse getRole(String uid) {
         try {
-            DocumentSnapshot docRef = db.collection("users").document(uid).get().get();
+            DocumentSnapshot docRef = getUserSnapshot(uid);
             return new FunctionResponse(true, docRef.getString("role")); 
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Could not get user:" + uid + " role", e);
@@ -454,7 +755,7 @@ public class GCPFireBase {
      */
     FunctionResponse deleteUserFirestore(String uid){
         try {
-            this.db.collection("users").document(uid).delete().get();
+            userWritten(uid, this.db.collection("users").document(uid).delete().get());
             return new FunctionResponse(true, "Delete successful");
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Could not delete user", e);
@@ -484,6 +785,7 @@ public class GCPFireBase {
         // Add user info to firestore
         try {
             String res = addUser(data, userRecord.getUid()).getUpdateTime().toString();
+            this.attributeIndex.changed(bucketName, userRecord.getUid(), attributes);
             return new FunctionResponse(true, "Add successful at " + res);
         } catch (InterruptedException | ExecutionException ex) {
             logger.error("Adding user " + user.name + " failed", ex);
@@ -534,6 +836,7 @@ public class GCPFireBase {
         // Add user info to firestore
         try {
             addUser(data, userRecord.getUid());
+            this.attributeIndex.changed(parent.bucketName, userRecord.getUid(), attributes);
             return new FunctionResponse(true, parent.bucketName);
         } catch (InterruptedException | ExecutionException ex) {
             logger.error("Adding user " + user.name + " failed", ex);
@@ -555,10 +858,16 @@ public class GCPFireBase {
             logger.error("Could not get user :" + uid, ex);
             return new FunctionResponse(false, "Getting user object failed");
         }
-        // Get file references
-        ArrayList<String> files = user.files;
-        
-        return filesToJSON(files);
+        return getFiles(user);
+    }
+
+    /**
+     * Gets a list of a users files
+     * @param user User object
+     * @return
+     */
+    public FunctionResponse getFiles(User user){
+        return filesToJSON(user.files);
     }
 
     /**
@@ -594,22 +903,20 @@ public class GCPFireBase {
         ArrayNode arrayNode = mapper.createArrayNode();
 
         // Get file data
-        for(String fileRef :files){
-            DocumentReference docRef = this.db.collection("files").document(fileRef);
-            ApiFuture<DocumentSnapshot> future = docRef.get();
-            DocumentSnapshot document;
-            try{
-                document = future.get();
-                if (document.exists()) {
-                    ObjectNode fileNode = arrayNode.addObject();
-                    fileNode.put("fileName", document.getString("fileName"));
-                    String type = document.getString("type").split("/")[0];
-                    fileNode.put("fileType", type);
-                    fileNode.put("ref", fileRef);
-                } 
-            } catch (InterruptedException | ExecutionException ex){
-                logger.error("Couldn't get file "  + fileRef, ex);   
-                return new FunctionResponse(false, "Couldn't get file");
+        List<DocumentSnapshot> documents;
+        try{
+            documents = getDocuments("files", files, "fileName", "type");
+        } catch (InterruptedException | ExecutionException ex){
+            logger.error("Couldn't get files", ex);
+            return new FunctionResponse(false, "Couldn't get file");
+        }
+        for(DocumentSnapshot document: documents){
+            if (document.exists()) {
+                ObjectNode fileNode = arrayNode.addObject();
+                fileNode.put("fileName", document.getString("fileName"));
+                String type = document.getString("type").split("/")[0];
+                fileNode.put("fileType", type);
+                fileNode.put("ref", document.getId());
             }
         }
         try{
@@ -620,6 +927,42 @@ public class GCPFireBase {
         }
     }
 
+    /**
+     * Reads many documents from a collection, in batches that are all sent at once
+     * rather than one read per document
+     * @param collection Collection the documents are in
+     * @param ids Document IDs
+     * @param fields Fields to read, all fields are read if none are given
+     * @return Document snapshots in the same order as ids, missing documents are
+     * included but do not exist
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    List<DocumentSnapshot> getDocuments(String collection, List<String> ids, String... fields) throws InterruptedException, ExecutionException{
+        List<DocumentSnapshot> documents = new ArrayList<>(ids.size());
+        if(ids.isEmpty()){
+            return documents;
+        }
+        CollectionReference colRef = this.db.collection(collection);
+        FieldMask mask = fields.length > 0 ? FieldMask.of(fields) : null;
+
+        // Send every batch before waiting on any of them
+        List<ApiFuture<List<DocumentSnapshot>>> futures = new ArrayList<>();
+        for(int i = 0; i < ids.size(); i += GET_ALL_BATCH_SIZE){
+            List<String> batch = ids.subList(i, Math.min(i + GET_ALL_BATCH_SIZE, ids.size()));
+            DocumentReference[] refs = new DocumentReference[batch.size()];
+            for(int j = 0; j < refs.length; j++){
+                refs[j] = colRef.document(batch.get(j));
+            }
+            futures.add(mask == null ? this.db.getAll(refs) : this.db.getAll(refs, mask));
+        }
+        // Results of each batch are in the order the references were given
+        for(ApiFuture<List<DocumentSnapshot>> future: futures){
+            documents.addAll(future.get());
+        }
+        return documents;
+    }
+
     /***
      * Returns a JSON array of all data providers, for use on registration 
      * @return
@@ -655,31 +998,65 @@ public class GCPFireBase {
      * @return
      */
     public FunctionResponse getAllPatients(String uid){
+        return getAllPatients(uid, 0, -1);
+    }
+
+    /**
+     * Gets a page of patients for a Data Requester
+     * @param uid ID of DR
+     * @param offset Index of the first patient to return
+     * @param limit Maximum number of patients to return, or -1 for all patients.
+     * If a limit is given the response is an object containing the page of patients,
+     * the total number of patients and the offset of the next page (null on the last page)
+     * @return
+     */
+    public FunctionResponse getAllPatients(String uid, int offset, int limit){
         ObjectMapper mapper = new ObjectMapper();
         ArrayNode arrayNode = mapper.createArrayNode();
 
-        // Get all DPs
-        ArrayList<String> patients;
+        // Get all patient IDs
+        List<String> patients;
         try {
-            DocumentSnapshot ref = this.db.collection("users").document(uid).get().get();
+            DocumentReference docRef = this.db.collection("users").document(uid);
+            DocumentSnapshot ref = this.db.getAll(new DocumentReference[]{docRef}, FieldMask.of("patients")).get().get(0);
             patients = (ArrayList<String>) ref.get("patients");
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Could not get patients from FireStore", e);
             return new FunctionResponse(false, "Could not get patients from FireStore");
         }
-        for(String patient: patients){
-            try{
-                DocumentSnapshot doc = this.db.collection("users").document(patient).get().get();
-                ObjectNode dpNode = arrayNode.addObject();
-                dpNode.put("name", doc.getString("name"));
-                dpNode.put("nhsNum", doc.getString("nhsnum"));
-            } catch (InterruptedException | ExecutionException e) {
-                logger.error("Could not get patient info", e);
-                return new FunctionResponse(false, "Could not get patient from FireStore");
-            }
+        if(patients == null){
+            patients = new ArrayList<>();
+        }
+        int total = patients.size();
+        int from = Math.min(Math.max(offset, 0), total);
+        int to = limit < 0 ? total : (int) Math.min((long) from + limit, total);
+
+        // Only read the patients in this page
+        List<DocumentSnapshot> documents;
+        try{
+            documents = getDocuments("users", patients.subList(from, to), "name", "nhsnum");
+        } catch (InterruptedException | ExecutionException e) {
+            logger.error("Could not get patient info", e);
+            return new FunctionResponse(false, "Could not get patient from FireStore");
+        }
+        for(DocumentSnapshot doc: documents){
+            ObjectNode dpNode = arrayNode.addObject();
+            dpNode.put("name", doc.getString("name"));
+            dpNode.put("nhsNum", doc.getString("nhsnum"));
         }
         try {
-            return new FunctionResponse(true, mapper.writer().writeValueAsString(arrayNode));
+            if(limit < 0){
+                return new FunctionResponse(true, mapper.writer().writeValueAsString(arrayNode));
+            }
+            ObjectNode page = mapper.createObjectNode();
+            page.set("patients", arrayNode);
+            page.put("total", total);
+            if(to < total){
+                page.put("nextOffset", to);
+            } else {
+                page.putNull("nextOffset");
+            }
+            return new FunctionResponse(true, mapper.writer().writeValueAsString(page));
         } catch (JsonProcessingException e) {
             logger.error("Could not process JSON", e);
             return new FunctionResponse(false, "Couldn't process JSON");
@@ -693,36 +1070,44 @@ public class GCPFireBase {
      * @return
      */
     public FunctionResponse getPatientFiles(String nhsNum, String uid){
+        // Get requester
+        User drObject;
+        try{
+            drObject = getUserObject(uid);
+        }
+        catch(InterruptedException | ExecutionException ex){
+            logger.error("Getting DR object failed", ex);
+            return new FunctionResponse(false, "Couldn't get DR object");
+        }
+        drObject.uid = uid;
+        return getPatientFiles(nhsNum, drObject);
+    }
+
+    /**
+     * Gets a list of a patient files from an NHS num
+     * @param nhsNum
+     * @param drObject User object of the DR making the request
+     * @return
+     */
+    public FunctionResponse getPatientFiles(String nhsNum, User drObject){
+        String uid = drObject.uid;
         // Lookup patient from NHS num
-        QuerySnapshot snapshot;
+        DocumentSnapshot patient;
         try {
-            snapshot = queryUsers("nhsnum", nhsNum);
+            patient = getPatientByNHSnum(nhsNum);
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Could not find user with NHS num " + nhsNum, e);
             return new FunctionResponse(false, "Could not get from FireStore");
         }
         //Get patient files
-        ArrayList<String> files = null;
-        int x = 0;
-        for(QueryDocumentSnapshot doc: snapshot.getDocuments()){
-            files = (ArrayList<String>) doc.get("files");
-            if(!uid.equals(doc.getString("parent"))){
-                return new FunctionResponse(false, "Do not have access to this user");
-            }
-            x++;
-        }
-        if(x>1 || files == null){
+        if(patient == null || patient.get("files") == null){
             return new FunctionResponse(false, "Failed to get patient files");
         }
-        // Get requesters files
-        User drObject;
-        try{
-            drObject = getUserObject(uid);
-        }
-        catch(InterruptedException | ExecutionException ex){
-            logger.error("Getting DR object failed", ex);
-            return new FunctionResponse(false, "Couldn't get DR object");
+        if(!uid.equals(patient.getString("parent"))){
+            return new FunctionResponse(false, "Do not have access to this user");
         }
+        ArrayList<String> files = (ArrayList<String>) patient.get("files");
+        // Get requesters files
         ArrayList<String> drFiles = drObject.files;
         //files now contains only the elements which are also contained in drFiles.
         files.retainAll(drFiles);
@@ -736,14 +1121,16 @@ public class GCPFireBase {
      * @return False if no other NHS nums are found
      */
     public boolean checkNHSnum(String nhsNum){
-        QuerySnapshot snapshot;
         try {
-            snapshot = queryUsers("nhsnum", nhsNum);
+            if(nhsIndex(nhsNum).get().get().exists()){
+                return false;
+            }
+            // Patients registered before the index
+            return queryUsers("nhsnum", nhsNum).isEmpty();
         } catch (InterruptedException | ExecutionException e) {
             logger.error("User query failed ", e);
             return true;
         }
-        return snapshot.isEmpty();
     }
 
     /**
@@ -791,27 +1178,22 @@ public class GCPFireBase {
      */
     public FunctionResponse getPatientAttributes(String nhsNum){
         // Lookup patient from NHS num
-        QuerySnapshot snapshot;
+        DocumentSnapshot patient;
         try {
-            snapshot = queryUsers("nhsnum", nhsNum);
+            patient = getPatientByNHSnum(nhsNum);
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Could not find user with NHS num " + nhsNum, e);
             return new FunctionResponse(false, "Could not get from FireStore");
         }
         //Get patient attributes
-        ArrayList<String> attributes = null;
-        int x = 0;
-        for(QueryDocumentSnapshot doc: snapshot.getDocuments()){
-            attributes = (ArrayList<String>) doc.get("attributes");
-            x++;
-        }
-        if(x>1 || attributes == null){
+        if(patient == null || patient.get("attributes") == null){
             return new FunctionResponse(false, "Failed to get patient attributes");
         }
+        ArrayList<String> attributes = (ArrayList<String>) patient.get("attributes");
         ObjectMapper mapper = new ObjectMapper();
         ArrayNode arrayNode = mapper.createArrayNode();
 
-        x = 0;
+        int x = 0;
         //Convert to JSON, ignore first attributes as this is the uid, make first 2 shown non removeable
         for(String attr: attributes){
             if(x>0){
@@ -858,30 +1240,20 @@ public class GCPFireBase {
      */
     public FunctionResponse updatePatientAttributes(String nhsNum, String attr, String REQuid){
         // Lookup patient from NHS num
-        QuerySnapshot snapshot;
+        DocumentSnapshot patient;
         try {
-            snapshot = queryUsers("nhsnum", nhsNum);
+            patient = getPatientByNHSnum(nhsNum);
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Could not get user from firestore", e);
             return new FunctionResponse(false, "Could not get from FireStore");
         }
-        String uid = null;
-        String bucketName = null;
-        ArrayList<String> attributes = null;
-        int x = 0;
-        for(QueryDocumentSnapshot doc: snapshot.getDocuments()){
-            uid = doc.getId();
-            bucketName = doc.getString("bucketName");
-            attributes = (ArrayList<String>) doc.get("attributes");
-            if(!REQuid.equals(doc.getString("parent"))){
-                return new FunctionResponse(false, "Do not have access to this user");
-            }
-            x++;
-        }
-        if(x>1 || uid == null){
+        if(patient == null){
             return new FunctionResponse(false, "Failed to get patient");
         }
-        return updateAttribute(uid, bucketName, attributes, attr);
+        if(!REQuid.equals(patient.getString("parent"))){
+            return new FunctionResponse(false, "Do not have access to this user");
+        }
+        return updateAttribute(patient.getId(), patient.getString("bucketName"), (ArrayList<String>) patient.get("attributes"), attr);
     }
 
     /**
@@ -895,16 +1267,20 @@ public class GCPFireBase {
     private FunctionResponse updateAttribute(String uid, String bucketName, ArrayList<String> attributes, String attr){
         // Generate & store new primary key
         attributes.add(attr);
-        FunctionResponse keyRes = helper.genAndUpdatePrivKey(bucketName, attributes.toArray(new String[0]), uid);
-        if(!keyRes.successful()){
-            logger.error(keyRes.getMessage());
+        long keyVersion;
+        try {
+            keyVersion = helper.genAndUpdatePrivKey(bucketName, attributes.toArray(new String[0]), uid);
+        } catch (IOException e) {
+            logger.error("Couldn't update key for user: " + uid, e);
             return new FunctionResponse(false, "Key could not be updated");
         }
-        
 
-        //Add to firestore
+        //Add to firestore, with the key version so other instances drop their cached key
         try {
-            updateArray(uid, "attributes", attr);
+            DocumentReference docRef = this.db.collection("users").document(uid);
+            userWritten(uid, docRef.update("attributes", FieldValue.arrayUnion(attr),
+                    "keyVersion", keyVersion).get());
+            this.attributeIndex.changed(bucketName, uid, attributes);
             return new FunctionResponse(true, "Add successful");
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Couldn't add attribute to firestore", e);
@@ -937,26 +1313,16 @@ public class GCPFireBase {
      */
     public FunctionResponse removePatientAttribute(String nhsNum, String attr){
          // Lookup patient from NHS num
-         QuerySnapshot snapshot;
+         DocumentSnapshot patient;
          try {
-             snapshot = queryUsers("nhsnum", nhsNum);
+             patient = getPatientByNHSnum(nhsNum);
          } catch (InterruptedException | ExecutionException e) {
              return new FunctionResponse(false, "Could not get from FireStore");
          }
-         String uid = null;
-         String bucketName = null;
-         ArrayList<String> attributes = null;
-         int x = 0;
-         for(QueryDocumentSnapshot doc: snapshot.getDocuments()){
-             uid = doc.getId();
-             bucketName = doc.getString("bucketName");
-             attributes = (ArrayList<String>) doc.get("attributes");
-             x++;
-         }
-         if(x>1 || uid == null){
+         if(patient == null){
              return new FunctionResponse(false, "Failed to get patient");
         }
-        return removeAttribute(uid, bucketName, attributes, attr);
+        return removeAttribute(patient.getId(), patient.getString("bucketName"), (ArrayList<String>) patient.get("attributes"), attr);
     }
 
     /**
@@ -970,14 +1336,19 @@ public class GCPFireBase {
     private FunctionResponse removeAttribute(String uid, String bucketName, ArrayList<String> attributes, String attr){
         // Generate & store new primary key
         attributes.remove(attr);
-        FunctionResponse keyRes = helper.genAndUpdatePrivKey(bucketName, attributes.toArray(new String[0]), uid);
-        if(!keyRes.successful()){
+        long keyVersion;
+        try {
+            keyVersion = helper.genAndUpdatePrivKey(bucketName, attributes.toArray(new String[0]), uid);
+        } catch (IOException e) {
+            logger.error("Couldn't update key for user: " + uid, e);
             return new FunctionResponse(false, "Key could not be updated");
         }
 
         DocumentReference docRef = this.db.collection("users").document(uid);
         try {
-            docRef.update("attributes", FieldValue.arrayRemove(attr)).get();
+            userWritten(uid, docRef.update("attributes", FieldValue.arrayRemove(attr),
+                    "keyVersion", keyVersion).get());
+            this.attributeIndex.changed(bucketName, uid, attributes);
             return new FunctionResponse(true, "Removed attribute");
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Couldn't remove attribute from firestore", e);
@@ -986,44 +1357,156 @@ public class GCPFireBase {
     }
 
     /**
-     * Deletes a fileRef from a users files, and if last user with fileRef then deletes whole file
+     * Removes a deleted user from the attribute index. Failing to do so does not fail the
+     * deletion, users found in the index are checked against their documents.
+     * @param bucketName Bucket the user was registered to
+     * @param uid User ID
+     */
+    private void indexDeleted(String bucketName, String uid) throws InterruptedException{
+        try {
+            this.attributeIndex.changed(bucketName, uid, null);
+        } catch (ExecutionException e) {
+            logger.error("Could not remove deleted user: " + uid + " from the attribute index", e);
+        }
+    }
+
+    /**
+     * Deletes a fileRef from a users files, and if last user with fileRef then deletes whole file.
+     * Files keep a count of the users that have them, which is updated in the same transaction
+     * as the users files. Files from before the count was kept are counted the first time one
+     * of their references is removed.
      * @param uid User ID of user to delete file from
      * @param fileRef File reference to delete
-     * @return
+     * @return File path if the file should be deleted from cloud storage, or "No delete needed"
      */
     public FunctionResponse deleteFile(String uid, String fileRef){
-        //Remove file ref from user
-        DocumentReference docRef = this.db.collection("users").document(uid);
+        DocumentReference userDocRef = this.db.collection("users").document(uid);
+        DocumentReference fileDocRef = this.db.collection("files").document(fileRef);
+        String fileLocation;
         try {
-            docRef.update("files", FieldValue.arrayRemove(fileRef)).get();
+            fileLocation = this.db.runTransaction(transaction -> {
+                DocumentSnapshot userDoc = transaction.get(userDocRef).get();
+                DocumentSnapshot fileDoc = transaction.get(fileDocRef).get();
+                List<String> files = (List<String>) userDoc.get("files");
+                boolean hasFile = files != null && files.contains(fileRef);
+                long remaining = remainingRefs(transaction, uid, fileDoc, hasFile);
+
+                if(hasFile){
+                    transaction.update(userDocRef, "files", FieldValue.arrayRemove(fileRef));
+                }
+                if(!fileDoc.exists()){
+                    return null;
+                }
+                if(remaining <= 0){
+                    transaction.delete(fileDocRef);
+                    return fileDoc.getString("filepath");
+                }
+                transaction.update(fileDocRef, "refCount", remaining);
+                return null;
+            }).get();
         } catch (InterruptedException | ExecutionException e) {
-            logger.error("Couldn't remove file from user", e);
+            logger.error("Couldn't remove file: " + fileRef + " from user: " + uid, e);
             return new FunctionResponse(false, "Couldn't remove file from firestore");
         }
+        this.userCache.invalidate(uid);
+        if(fileLocation == null){
+            return new FunctionResponse(true, "No delete needed");
+        }
+        return new FunctionResponse(true, fileLocation);
+    }
 
-        //Check if any others users still have file
-        Boolean delete = false;
+    /**
+     * Releases a users reference to a file as part of an account deletion job, without
+     * touching the users document so the files of a user can be released in parallel.
+     * The files count is updated and, if no one else has the file, its path is recorded
+     * under the job so the blob is not forgotten if the job stops before deleting it.
+     * A marker under the job stops the count being updated twice if the job is retried
+     * before the reference is removed with removeReleasedFiles.
+     * @param uid User ID of user the file is released from
+     * @param fileRef File reference to release
+     * @param jobRef Deletion job document
+     * @return File path if the file should be deleted from cloud storage, or "No delete needed"
+     */
+    FunctionResponse releaseFile(String uid, String fileRef, DocumentReference jobRef){
+        DocumentReference fileDocRef = this.db.collection("files").document(fileRef);
+        DocumentReference markerRef = jobRef.collection("released").document(fileRef);
+        String fileLocation;
         try {
-            QuerySnapshot query = this.db.collection("users").whereArrayContains("files", fileRef).get().get();
-            if(query.isEmpty()){
-                delete = true;
-            }
+            fileLocation = this.db.runTransaction(transaction -> {
+                DocumentSnapshot marker = transaction.get(markerRef).get();
+                DocumentSnapshot fileDoc = transaction.get(fileDocRef).get();
+                if(marker.exists() || !fileDoc.exists()){
+                    return null;
+                }
+                long remaining = remainingRefs(transaction, uid, fileDoc, true);
+                transaction.set(markerRef, Collections.emptyMap());
+                if(remaining <= 0){
+                    transaction.delete(fileDocRef);
+                    Map<String, Object> blob = new HashMap<>();
+                    blob.put("path", fileDoc.getString("filepath"));
+                    transaction.set(jobRef.collection("blobs").document(fileRef), blob);
+                    return fileDoc.getString("filepath");
+                }
+                transaction.update(fileDocRef, "refCount", remaining);
+                return null;
+            }).get();
         } catch (InterruptedException | ExecutionException e) {
-            logger.error("Check if other users still have file failed", e);
-            return new FunctionResponse(false, "Coulnd't perform nessasary checks");
+            logger.error("Couldn't release file: " + fileRef + " from user: " + uid, e);
+            return new FunctionResponse(false, "Couldn't release file");
         }
-        if(delete){
-            DocumentReference fileDocRef = this.db.collection("files").document(fileRef);
-            try {
-                String fileLocation = fileDocRef.get().get().getString("filepath");
-                fileDocRef.delete().get();
-                return new FunctionResponse(true, fileLocation);
-            } catch (InterruptedException | ExecutionException e) {
-                logger.error("Couldn't delete file: " + fileRef + " from firestore", e);
-                return new FunctionResponse(false, "Couldn't delete file from firestore");
+        if(fileLocation == null){
+            return new FunctionResponse(true, "No delete needed");
+        }
+        return new FunctionResponse(true, fileLocation);
+    }
+
+    /**
+     * Removes file references released with releaseFile from a users files in one write,
+     * deleting their markers and updating the job in the same batch so the job only
+     * advances once the references are gone
+     * @param uid User ID
+     * @param fileRefs Released file references
+     * @param jobRef Deletion job document
+     * @param jobUpdate Fields to update on the job
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    void removeReleasedFiles(String uid, List<String> fileRefs, DocumentReference jobRef, Map<String, Object> jobUpdate)
+            throws InterruptedException, ExecutionException{
+        WriteBatch batch = this.db.batch();
+        batch.update(this.db.collection("users").document(uid), "files", FieldValue.arrayRemove(fileRefs.toArray()));
+        for(String fileRef: fileRefs){
+            batch.delete(jobRef.collection("released").document(fileRef));
+        }
+        batch.update(jobRef, jobUpdate);
+        userWritten(uid, batch.commit().get().get(0));
+    }
+
+    /**
+     * Counts the users left with a file once a user has removed it. Files from before the
+     * count was kept are counted by querying the users that still have them.
+     * @param transaction Transaction the file was read in
+     * @param uid User ID of the user removing the file
+     * @param fileDoc The files document
+     * @param hasFile true if the user still has the file
+     * @return Number of other users with the file
+     */
+    private long remainingRefs(Transaction transaction, String uid, DocumentSnapshot fileDoc, boolean hasFile)
+            throws InterruptedException, ExecutionException{
+        if(fileDoc.contains("refCount")){
+            return fileDoc.getLong("refCount") - (hasFile ? 1 : 0);
+        }
+        long remaining = 0;
+        if(fileDoc.exists()) {
+            // Legacy file, count the other users that still have it
+            QuerySnapshot holders = transaction.get(this.db.collection("users").whereArrayContains("files", fileDoc.getId())).get();
+            for(QueryDocumentSnapshot holder: holders.getDocuments()){
+                if(!holder.getId().equals(uid)){
+                    remaining++;
+                }
             }
         }
-        return new FunctionResponse(true, "No delete needed");
+        return remaining;
     }
 
     /**
@@ -1039,6 +1522,17 @@ public class GCPFireBase {
             logger.error("Could not get user object", e);
             return new FunctionResponse(false, "Could not find user");
         }
+        user.uid = uid;
+        return getAllInBucket(user);
+    }
+
+    /**
+     * Returns a JSON of all users in the bucket of the specifed user
+     * @param user User object
+     * @return
+     */
+    public FunctionResponse getAllInBucket(User user){
+        String uid = user.uid;
         QuerySnapshot qs;
         try {
             qs = queryUsers("bucketName", user.bucketName);
@@ -1134,7 +1628,7 @@ public class GCPFireBase {
      */
     public FunctionResponse removeReminder(String uid, String reminder){
         try {
-            this.db.collection("users").document(uid).update("reminders", FieldValue.arrayRemove(reminder)).get();
+            userWritten(uid, this.db.collection("users").document(uid).update("reminders", FieldValue.arrayRemove(reminder)).get());
             return new FunctionResponse(true, "Delete successful");
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Error whilst removing reminder", e);
@@ -1149,25 +1643,16 @@ public class GCPFireBase {
      */
     public String getUIDfromNHSnum(String nhsNum, String REQuid){
         // Lookup patient from NHS num
-        QuerySnapshot snapshot;
+        DocumentSnapshot patient;
         try {
-            snapshot = queryUsers("nhsnum", nhsNum);
+            patient = getPatientByNHSnum(nhsNum);
         } catch (InterruptedException | ExecutionException e) {
             return null;
         }
-        String uid = null;
-        int x = 0;
-        for(QueryDocumentSnapshot doc: snapshot.getDocuments()){
-           uid = doc.getId();
-           if(!REQuid.equals(doc.getString("parent"))){
-                return null;
-           }
-           x++;
-       }
-       if(x>1){
-           return null;
-       }
-       return uid;
+        if(patient == null || !REQuid.equals(patient.getString("parent"))){
+            return null;
+        }
+        return patient.getId();
     }
 
     /**
@@ -1260,7 +1745,12 @@ public class GCPFireBase {
         docData.put("name", user.name);
         docData.put("successful", successful);
         docData.put("date", DateTimeFormatter.ofLocalizedDateTime(FormatStyle.SHORT).format(LocalDateTime.now()));
+        docData.put("timestamp", Timestamp.now());
         docData.put("uid", uid);
+        if (this.fileLogWriter != null) {
+            this.fileLogWriter.log(fileref, docData);
+            return new FunctionResponse(true, "Log queued");
+        }
         try {
             this.db.collection("files").document(fileref).collection("logs").add(docData).get();
             return new FunctionResponse(true, "Log added");
@@ -1278,30 +1768,142 @@ public class GCPFireBase {
             logger.error("Could not get user Object for " + uid, e);
             return new FunctionResponse(false, "Couldn't get user object");
         }
+        user.uid = uid;
+        return getFileLogs(fileRef, user);
+    }
+
+    /**
+     * Returns the access logs of a file, if the user has access to it
+     * @param fileRef File reference
+     * @param user User object of the user making the request
+     * @return
+     */
+    public FunctionResponse getFileLogs(String fileRef, User user){
+        return getFileLogs(fileRef, user, -1, null);
+    }
+
+    /**
+     * Returns a page of the access logs of a file, newest first, if the user has access to it
+     * @param fileRef File reference
+     * @param user User object of the user making the request
+     * @param limit Maximum number of logs to return, or -1 for all logs.
+     * If a limit is given the response is an object containing the page of logs and
+     * the cursor of the next page (null on the last page)
+     * @param cursor Cursor returned with the previous page, or null for the first page
+     * @return
+     */
+    public FunctionResponse getFileLogs(String fileRef, User user, int limit, String cursor){
+        String uid = user.uid;
         if(!user.files.contains(fileRef)){
             logger.error("User does not have access to file");
             return new FunctionResponse(false, "Don't have access to this file");
         }
-        QuerySnapshot qs;
+        CollectionReference logs = this.db.collection("files").document(fileRef).collection("logs");
+        Query query = logs.orderBy("timestamp", Query.Direction.DESCENDING)
+                .orderBy(FieldPath.documentId(), Query.Direction.DESCENDING);
+        if(cursor != null){
+            String[] parts = cursor.split("_", 2);
+            try {
+                Timestamp after = Timestamp.ofTimeMicroseconds(Long.parseLong(parts[0]));
+                query = query.startAfter(after, parts[1]);
+            } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                return new FunctionResponse(false, "Invalid cursor");
+            }
+        }
+        if(limit >= 0){
+            // Fetch one extra log to tell if there is another page
+            query = query.limit(limit + 1);
+        }
+
+        List<QueryDocumentSnapshot> docs;
         try {
-            qs = this.db.collection("files").document(fileRef).collection("logs").get().get();
+            if(cursor == null){
+                timestampLegacyLogs(fileRef, logs);
+            }
+            if(limit < 0){
+                // Read unordered and sorted here, so a log missing its timestamp is still returned
+                docs = new ArrayList<>(logs.get().get().getDocuments());
+                docs.sort(Comparator.comparing(this::logTime).thenComparing(DocumentSnapshot::getId).reversed());
+            } else {
+                docs = query.get().get().getDocuments();
+            }
         } catch (InterruptedException | ExecutionException e) {
-            logger.error("Could not get user: " + uid + " diary entries");
-            return new FunctionResponse(false, "Could not find diary entries");
+            logger.error("Could not get file: " + fileRef + " logs for user: " + uid, e);
+            return new FunctionResponse(false, "Could not find file logs");
+        }
+        boolean more = limit >= 0 && docs.size() > limit;
+        if(more){
+            docs = docs.subList(0, limit);
         }
+
         ObjectMapper mapper = new ObjectMapper();
         ArrayNode arrayNode = mapper.createArrayNode();
-        for(QueryDocumentSnapshot doc: qs.getDocuments()){
+        for(QueryDocumentSnapshot doc: docs){
             ObjectNode node = arrayNode.addObject();
             node.put("name", doc.getString("name"));
             node.put("date", doc.getString("date"));
+            node.put("timestamp", logTime(doc).toString());
             node.put("successful", doc.getBoolean("successful"));
         }
         try {
-            return new FunctionResponse(true, mapper.writer().writeValueAsString(arrayNode));
+            if(limit < 0){
+                return new FunctionResponse(true, mapper.writer().writeValueAsString(arrayNode));
+            }
+            ObjectNode page = mapper.createObjectNode();
+            page.set("logs", arrayNode);
+            if(more){
+                QueryDocumentSnapshot last = docs.get(docs.size() - 1);
+                Timestamp time = last.getTimestamp("timestamp");
+                long micros = time.getSeconds() * 1000000 + time.getNanos() / 1000;
+                page.put("nextCursor", micros + "_" + last.getId());
+            } else {
+                page.putNull("nextCursor");
+            }
+            return new FunctionResponse(true, mapper.writer().writeValueAsString(page));
         } catch (JsonProcessingException e) {
             logger.error("Couldn't proccess JSON", e);
             return new FunctionResponse(false, "Couldn't process JSON");
         }
     }
+
+    /**
+     * Adds a timestamp to logs written before logs were timestamped, using the time the
+     * log document was created, so they are included in time ordered queries. Files are
+     * marked once done so this is only done once per file.
+     * @param fileRef File reference
+     * @param logs The files logs collection
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    private void timestampLegacyLogs(String fileRef, CollectionReference logs) throws InterruptedException, ExecutionException{
+        DocumentReference fileDocRef = this.db.collection("files").document(fileRef);
+        DocumentSnapshot fileDoc = this.db.getAll(new DocumentReference[]{fileDocRef}, FieldMask.of("logsTimestamped")).get().get(0);
+        if(Boolean.TRUE.equals(fileDoc.getBoolean("logsTimestamped"))){
+            return;
+        }
+        WriteBatch batch = this.db.batch();
+        int ops = 0;
+        for(QueryDocumentSnapshot doc: logs.get().get().getDocuments()){
+            if(doc.contains("timestamp")){
+                continue;
+            }
+            batch.update(doc.getReference(), "timestamp", doc.getCreateTime());
+            if(++ops == WRITE_BATCH_SIZE){
+                batch.commit().get();
+                batch = this.db.batch();
+                ops = 0;
+            }
+        }
+        // Merged rather than updated, logs can outlive their files document
+        batch.set(fileDocRef, Map.of("logsTimestamped", true), SetOptions.merge());
+        batch.commit().get();
+    }
+
+    /**
+     * @return The time a log was written, its create time if it has no timestamp
+     */
+    private Timestamp logTime(DocumentSnapshot log){
+        Timestamp time = log.getTimestamp("timestamp");
+        return time != null ? time : log.getCreateTime();
+    }
 }
\ No newline at end of file
@@ -2,11 +2,13 @@ package com.jws1g18.myphrplus;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
 
 import com.google.cloud.secretmanager.v1.ProjectName;
 import com.google.cloud.secretmanager.v1.Replication;
 import com.google.cloud.secretmanager.v1.Secret;
 import com.google.cloud.secretmanager.v1.SecretManagerServiceClient;
+import com.google.cloud.secretmanager.v1.SecretManagerServiceSettings;
 import com.google.cloud.secretmanager.v1.SecretName;
 import com.google.cloud.secretmanager.v1.SecretPayload;
 import com.google.cloud.secretmanager.v1.SecretVersion;
@@ -15,8 +17,76 @@ import com.google.cloud.secretmanager.v1.SecretManagerServiceClient.ListSecretVe
 import com.google.cloud.secretmanager.v1.AccessSecretVersionResponse;
 import com.google.protobuf.ByteString;
 
+/**
+ * Access to the projects secret manager. A single client (and its pool of gRPC
+ * channels) is shared by every call for the life of the application, rather
+ * than paying for a new channel and TLS handshake on every key access.
+ */
 public class GCPSecretManager {
     static final ProjectName projectName = ProjectName.of("myphrplus-backend");
+    static final int DEFAULT_CHANNELS = 2;
+
+    private static volatile SecretManagerServiceClient client;
+    private static int channelCount = DEFAULT_CHANNELS;
+
+    /**
+     * Creates the shared client, replacing any existing client
+     * @param channels Number of gRPC channels to pool
+     * @throws IOException
+     */
+    public static synchronized void init(int channels) throws IOException{
+        shutdown();
+        channelCount = channels;
+        client = createClient(channels);
+    }
+
+    /**
+     * Shuts down the shared client, waiting for in flight calls to finish
+     */
+    public static synchronized void shutdown(){
+        if(client == null){
+            return;
+        }
+        client.shutdown();
+        try {
+            if(!client.awaitTermination(10, TimeUnit.SECONDS)){
+                client.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            client.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        client = null;
+    }
+
+    /**
+     * Gets the shared client, creating it with the default settings if init has
+     * not been called
+     * @return Secret manager client
+     * @throws IOException
+     */
+    static SecretManagerServiceClient getClient() throws IOException{
+        SecretManagerServiceClient current = client;
+        if(current != null && !current.isShutdown()){
+            return current;
+        }
+        synchronized(GCPSecretManager.class){
+            if(client == null || client.isShutdown()){
+                client = createClient(channelCount);
+            }
+            return client;
+        }
+    }
+
+    private static SecretManagerServiceClient createClient(int channels) throws IOException{
+        SecretManagerServiceSettings settings = SecretManagerServiceSettings.newBuilder()
+            .setTransportChannelProvider(
+                SecretManagerServiceSettings.defaultGrpcTransportProviderBuilder()
+                    .setPoolSize(channels)
+                    .build())
+            .build();
+        return SecretManagerServiceClient.create(settings);
+    }
 
     /**
      * Stores a key in the projects secret manager
@@ -26,23 +96,20 @@ public class GCPSecretManager {
      * @throws IOException 
      */
     public static boolean storeKey(String secretId, byte[] keys) throws IOException{
-        try(SecretManagerServiceClient client = SecretManagerServiceClient.create()){
-            Secret secret =
-                Secret.newBuilder()
-                    .setReplication(
-                        Replication.newBuilder()
-                            .setAutomatic(Replication.Automatic.newBuilder().build())
-                            .build())
-                        .build();
-
-            Secret createdSecret = client.createSecret(projectName, secretId, secret);
-
-            SecretPayload payload = SecretPayload.newBuilder().setData(ByteString.copyFrom(keys)).build();
-            client.addSecretVersion(createdSecret.getName(), payload);
-
-            client.close();
-            return true;
-        }
+        SecretManagerServiceClient client = getClient();
+        Secret secret =
+            Secret.newBuilder()
+                .setReplication(
+                    Replication.newBuilder()
+                        .setAutomatic(Replication.Automatic.newBuilder().build())
+                        .build())
+                    .build();
+
+        Secret createdSecret = client.createSecret(projectName, secretId, secret);
+
+        SecretPayload payload = SecretPayload.newBuilder().setData(ByteString.copyFrom(keys)).build();
+        client.addSecretVersion(createdSecret.getName(), payload);
+        return true;
     }
 
     /**
@@ -52,13 +119,27 @@ public class GCPSecretManager {
      * @throws IOException
      */
     public static byte[] getKeys(String secretId) throws IOException{
-        try (SecretManagerServiceClient client = SecretManagerServiceClient.create()) {
-            SecretVersionName secretVersionName = SecretVersionName.of(projectName.getProject(), secretId, "latest");
-            AccessSecretVersionResponse response = client.accessSecretVersion(secretVersionName);
-            byte[] res = response.getPayload().getData().toByteArray();
-            client.close();
-            return res;
-        }
+        return getLatestVersion(secretId).getPayload().getData().toByteArray();
+    }
+
+    /**
+     * Gets the latest version of a key, including its version name
+     * @param secretId ID of key to get
+     * @return Response containing the key and the name of the version accessed
+     * @throws IOException
+     */
+    public static AccessSecretVersionResponse getLatestVersion(String secretId) throws IOException{
+        SecretVersionName secretVersionName = SecretVersionName.of(projectName.getProject(), secretId, "latest");
+        return getClient().accessSecretVersion(secretVersionName);
+    }
+
+    /**
+     * Gets the version number from a secret version name
+     * @param versionName Full name of a secret version
+     * @return Version number
+     */
+    public static long versionNumber(String versionName){
+        return Long.parseLong(SecretVersionName.parse(versionName).getSecretVersion());
     }
 
     /**
@@ -67,19 +148,16 @@ public class GCPSecretManager {
      * @throws IOException
      */
     public static boolean destroySecretVersion(String secretId) throws IOException{
-        try (SecretManagerServiceClient client = SecretManagerServiceClient.create()) {
-            
-            SecretName secretName = SecretName.of(projectName.getProject(), secretId);
-            ListSecretVersionsPagedResponse pagedResponse = client.listSecretVersions(secretName);
-
-            //Get lastest secret verison 
-            Iterator<SecretVersion> it = pagedResponse.iterateAll().iterator();
-            SecretVersion secretVersion = it.next();
-
-            client.destroySecretVersion(secretVersion.getName());
-            client.close();
-            return true;
-        }
+        SecretManagerServiceClient client = getClient();
+        SecretName secretName = SecretName.of(projectName.getProject(), secretId);
+        ListSecretVersionsPagedResponse pagedResponse = client.listSecretVersions(secretName);
+
+        //Get lastest secret verison 
+        Iterator<SecretVersion> it = pagedResponse.iterateAll().iterator();
+        SecretVersion secretVersion = it.next();
+
+        client.destroySecretVersion(secretVersion.getName());
+        return true;
     }
 
     /**
@@ -89,16 +167,25 @@ public class GCPSecretManager {
      * @throws IOException
      */
     public static boolean addSecretVersion(String secretId, byte[] key) throws IOException{
-        try (SecretManagerServiceClient client = SecretManagerServiceClient.create()) {
-            SecretName secretName = SecretName.of(projectName.getProject(), secretId);
-            // Create the secret payload.
-            SecretPayload payload =
-            SecretPayload.newBuilder()
-                .setData(ByteString.copyFrom(key))
-                .build();
-            client.addSecretVersion(secretName, payload);
-            client.close();
-            return true;
-        }
+        addKeyVersion(secretId, key);
+        return true;
+    }
+
+    /**
+     * Adds a new version to a current secret
+     * @param secretId ID of secret to add new version too
+     * @param key byte array of key
+     * @return Version number of the new version
+     * @throws IOException
+     */
+    public static long addKeyVersion(String secretId, byte[] key) throws IOException{
+        SecretName secretName = SecretName.of(projectName.getProject(), secretId);
+        // Create the secret payload.
+        SecretPayload payload =
+        SecretPayload.newBuilder()
+            .setData(ByteString.copyFrom(key))
+            .build();
+        SecretVersion version = getClient().addSecretVersion(secretName, payload);
+        return versionNumber(version.getName());
     }
 }
@@ -0,0 +1,167 @@
+package com.jws1g18.myphrplus;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.cloud.ReadChannel;
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.BucketInfo;
+import com.google.cloud.storage.Storage;
+import com.google.cloud.storage.StorageClass;
+import com.google.cloud.storage.StorageException;
+import com.google.cloud.storage.StorageOptions;
+
+/**
+ * Blob store backed by google cloud storage
+ */
+public class GcsBlobStore implements BlobStore {
+    // Bytes buffered before being sent during a streamed upload, a multiple of 256KiB
+    static final int UPLOAD_CHUNK_SIZE = 1024 * 1024;
+    static final String LOCATION = "EUROPE-WEST2"; // London
+
+    private final Storage storage;
+
+    public GcsBlobStore() {
+        this(StorageOptions.getDefaultInstance().getService());
+    }
+
+    public GcsBlobStore(Storage storage) {
+        this.storage = storage;
+    }
+
+    @Override
+    public void createBucket(String bucketName) throws IOException {
+        try {
+            this.storage.create(BucketInfo.newBuilder(bucketName).setStorageClass(StorageClass.STANDARD)
+                    .setLocation(LOCATION).build());
+        } catch (StorageException e) {
+            throw new IOException("Could not create bucket " + bucketName, e);
+        }
+    }
+
+    @Override
+    public boolean put(String bucketName, String objectName, String type, Writer writer) throws IOException {
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("Content-Type", type);
+        BlobInfo blobInfo = BlobInfo.newBuilder(BlobId.of(bucketName, objectName)).setMetadata(metadata).build();
+
+        try {
+            WriteChannel channel = this.storage.writer(blobInfo);
+            channel.setChunkSize(UPLOAD_CHUNK_SIZE);
+            if (!writer.write(Channels.newOutputStream(channel))) {
+                // Not closing the channel leaves the upload unfinished, so no object is created
+                return false;
+            }
+            channel.close();
+            return true;
+        } catch (StorageException e) {
+            throw new IOException("Upload to " + bucketName + " failed", e);
+        }
+    }
+
+    @Override
+    public void put(String bucketName, String objectName, String type, byte[] data) throws IOException {
+        Map<String, String> metadata = new HashMap<>();
+        metadata.put("Content-Type", type);
+        BlobInfo blobInfo = BlobInfo.newBuilder(BlobId.of(bucketName, objectName)).setMetadata(metadata).build();
+        try {
+            this.storage.create(blobInfo, data);
+        } catch (StorageException e) {
+            throw new IOException("Upload to " + bucketName + " failed", e);
+        }
+    }
+
+    @Override
+    public StoredObject stat(String bucketName, String objectName) throws IOException {
+        try {
+            Blob blob = this.storage.get(BlobId.of(bucketName, objectName));
+            if (blob == null) {
+                return null;
+            }
+            return new StoredObject(bucketName, objectName, blob.getSize(), blob.getGeneration());
+        } catch (StorageException e) {
+            throw new IOException("Could not get " + objectName, e);
+        }
+    }
+
+    @Override
+    public Reader open(StoredObject object) throws IOException {
+        ReadChannel channel;
+        try {
+            channel = this.storage.reader(BlobId.of(object.bucketName, object.objectName, object.generation),
+                    Storage.BlobSourceOption.generationMatch());
+        } catch (StorageException e) {
+            throw new IOException("Could not open " + object.objectName, e);
+        }
+        return new Reader() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException {
+                try {
+                    return channel.read(dst);
+                } catch (StorageException e) {
+                    throw new IOException("Could not read " + object.objectName, e);
+                }
+            }
+
+            @Override
+            public void seek(long position) throws IOException {
+                channel.seek(position);
+            }
+
+            @Override
+            public void setFetchSize(int bytes) {
+                channel.setChunkSize(bytes);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return channel.isOpen();
+            }
+
+            @Override
+            public void close() {
+                channel.close();
+            }
+        };
+    }
+
+    @Override
+    public byte[] getAll(String bucketName, String objectName) throws IOException {
+        try {
+            return this.storage.readAllBytes(BlobId.of(bucketName, objectName));
+        } catch (StorageException e) {
+            throw new IOException("Could not read " + objectName, e);
+        }
+    }
+
+    @Override
+    public boolean delete(String bucketName, String objectName) throws IOException {
+        try {
+            return this.storage.delete(bucketName, objectName);
+        } catch (StorageException e) {
+            throw new IOException("Could not delete " + objectName, e);
+        }
+    }
+
+    @Override
+    public void delete(String bucketName, List<String> objectNames) throws IOException {
+        List<BlobId> blobs = new ArrayList<>(objectNames.size());
+        for (String objectName : objectNames) {
+            blobs.add(BlobId.of(bucketName, objectName));
+        }
+        try {
+            // Storage splits the request into batches, false only means the file was already gone
+            this.storage.delete(blobs);
+        } catch (StorageException e) {
+            throw new IOException("Batch delete from " + bucketName + " failed", e);
+        }
+    }
+}
@@ -1,9 +1,16 @@
 package com.jws1g18.myphrplus;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
 import com.jws1g18.myphrplus.DTOS.User;
@@ -25,6 +32,13 @@ public class Helpers {
      */
     private Tika tika = new Tika();
 
+    // Bytes read from the start of a file to detect its type
+    static final int SNIFF_BYTES = 8 * 1024;
+
+    // Private keys a batch stores at once
+    static final int DEFAULT_KEY_WRITES = 8;
+    private int keyWrites = DEFAULT_KEY_WRITES;
+
     private static final List<String> validExtensions = Arrays
             .asList(new String[] { "pdf", "png", "jpg", "jpeg", "mp3" });
     private static final List<String> validTypes = Arrays
@@ -36,18 +50,30 @@ public class Helpers {
      * @return
      */
     public FunctionResponse detectFileType(MultipartFile file) {
+        byte[] head;
+        try (InputStream in = file.getInputStream()) {
+            head = in.readNBytes(SNIFF_BYTES);
+        } catch (IOException ex) {
+            return new FunctionResponse(false, "Invalid File Type");
+        }
+        return detectFileType(file.getOriginalFilename(), head);
+    }
+
+    /**
+     * Detects a file type from its name and the start of the file, every accepted
+     * type can be identified from its first SNIFF_BYTES bytes
+     * @param fileName Original name of the file
+     * @param head Up to the first SNIFF_BYTES bytes of the file
+     * @return Extension and type separated by a space
+     */
+    public FunctionResponse detectFileType(String fileName, byte[] head) {
         // Check extension
-        String extension = FilenameUtils.getExtension(file.getOriginalFilename());
+        String extension = FilenameUtils.getExtension(fileName);
         if (!validExtensions.contains(extension)) {
             return new FunctionResponse(false, "Invalid File Extension");
         }
         // Check type
-        String detectedType;
-        try {
-            detectedType = tika.detect(file.getBytes());
-        } catch (IOException ex) {
-            return new FunctionResponse(false, "Invalid File Type");
-        }
+        String detectedType = tika.detect(head);
         if (validTypes.contains(detectedType)) {
             return new FunctionResponse(true, extension + " " + detectedType);
         }
@@ -68,14 +94,74 @@ public class Helpers {
         }catch (IOException e) {
 			return new FunctionResponse(false, "Couldn't access keys");
 		}
+        return storePrivKey(uid, prv);
+    }
 
-		//Store private key
-		try {
-			GCPSecretManager.storeKey(uid, SerializeUtils.serializeBswabePrv(prv));
-            return new FunctionResponse(true, "Keys generated");
-		} catch (IOException e) {
-			return new FunctionResponse(false, "Couldn't store key");
-		}
+    /**
+     * Generates and stores private keys for many users of a bucket. The public and
+     * master keys are loaded once, the keys are generated together and then stored
+     * a bounded number at a time.
+     * @param bucketName Name of bucket that holds public key
+     * @param users Attributes of each user, by user ID
+     * @return Result for each user ID
+     */
+    public Map<String, FunctionResponse> genAndStorePrivKeys(String bucketName, Map<String, String[]> users){
+        Map<String, FunctionResponse> results = new LinkedHashMap<>();
+        if(users.isEmpty()){
+            return results;
+        }
+        List<String> uids = new ArrayList<>(users.keySet());
+        List<BswabePrv> keys;
+        try{
+            //Get public and master Keys once for the whole batch
+            byte[] mskByte = GCPSecretManager.getKeys(bucketName + "-master");
+            BswabePub pub = KeyCache.getPublicKey(bucketName);
+            BswabeMsk msk = SerializeUtils.unserializeBswabeMsk(pub, mskByte);
+            List<String[]> attributes = new ArrayList<>(uids.size());
+            for(String uid: uids){
+                attributes.add(users.get(uid));
+            }
+            keys = ABE.genPrivKeys(pub, msk, attributes);
+        }catch (IOException e) {
+            keys = null;
+        }
+        if(keys == null){
+            for(String uid: uids){
+                results.put(uid, new FunctionResponse(false, "Couldn't access keys"));
+            }
+            return results;
+        }
+
+        //Secret manager calls block, so writing one key at a time is where a batch spends its time
+        ExecutorService writers = Executors.newFixedThreadPool(Math.min(keyWrites, uids.size()),
+                DaemonThreads.named("key-writes"));
+        Map<String, Future<FunctionResponse>> pending = new LinkedHashMap<>();
+        try{
+            for(int i = 0; i < uids.size(); i++){
+                String uid = uids.get(i);
+                BswabePrv prv = keys.get(i);
+                if(prv == null){
+                    results.put(uid, new FunctionResponse(false, "No attributes"));
+                    continue;
+                }
+                pending.put(uid, writers.submit(() -> storePrivKey(uid, prv)));
+            }
+            for(Map.Entry<String, Future<FunctionResponse>> entry: pending.entrySet()){
+                try{
+                    results.put(entry.getKey(), entry.getValue().get());
+                }catch(ExecutionException e){
+                    results.put(entry.getKey(), new FunctionResponse(false, "Couldn't store key"));
+                }
+            }
+        }catch(InterruptedException e){
+            Thread.currentThread().interrupt();
+            for(String uid: uids){
+                results.putIfAbsent(uid, new FunctionResponse(false, "Couldn't store key"));
+            }
+        }finally{
+            writers.shutdownNow();
+        }
+        return results;
     }
 
     /**
@@ -83,26 +169,51 @@ public class Helpers {
      * @param bucketName Name of bucket that holds public key
      * @param attributes string array of attributes
      * @param uid user ID
-     * @return
+     * @return The new key version, to be recorded on the users document
+     * @throws IOException If the key could not be generated or stored
      */
-    public FunctionResponse genAndUpdatePrivKey(String bucketName, String[] attributes, String uid){
-        BswabePrv prv;
-        try{
-            prv = genPrivKey(bucketName, attributes, uid);
-        }catch (IOException e) {
-			return new FunctionResponse(false, "Couldn't access keys");
-		}
+    public long genAndUpdatePrivKey(String bucketName, String[] attributes, String uid) throws IOException{
+        BswabePrv prv = genPrivKey(bucketName, attributes, uid);
+        if(prv == null){
+            throw new IOException("Couldn't generate key for " + uid);
+        }
+        return updatePrivKey(bucketName, uid, prv);
+    }
 
-        //Add new key version
-        try{
-            GCPSecretManager.destroySecretVersion(uid);
-			GCPSecretManager.addSecretVersion(uid, SerializeUtils.serializeBswabePrv(prv));
+    /**
+     * Sets how many private keys a batch stores at once
+     * @param keyWrites Maximum concurrent secret manager writes per batch
+     */
+    public void setKeyWriteConcurrency(int keyWrites){
+        this.keyWrites = Math.max(1, keyWrites);
+    }
+
+    /**
+     * Stores a new private key
+     */
+    private FunctionResponse storePrivKey(String uid, BswabePrv prv){
+		try {
+			GCPSecretManager.storeKey(uid, SerializeUtils.serializeBswabePrv(prv));
             return new FunctionResponse(true, "Keys generated");
-        } catch (IOException e) {
+		} catch (IOException e) {
 			return new FunctionResponse(false, "Couldn't store key");
 		}
     }
 
+    /**
+     * Replaces a private key with a new version
+     * @return The new key version
+     */
+    private long updatePrivKey(String bucketName, String uid, BswabePrv prv) throws IOException{
+        //Add new key version
+        GCPSecretManager.destroySecretVersion(uid);
+        KeyCache.invalidatePrivateKey(uid);
+        long version = GCPSecretManager.addKeyVersion(uid, SerializeUtils.serializeBswabePrv(prv));
+        //Cache the new key, tagged with its version so an older cached key is never used
+        KeyCache.updatePrivateKey(uid, version, KeyCache.getPublicKey(bucketName), prv);
+        return version;
+    }
+
     /**
      * Generates a private key
      * @param bucketName Name of bucket that holds public key
@@ -114,9 +225,7 @@ public class Helpers {
     private BswabePrv genPrivKey(String bucketName, String[] attributes, String uid) throws IOException{
         //Get public and master Keys
         byte[] mskByte = GCPSecretManager.getKeys(bucketName + "-master");
-        byte[] pubByte = GCPSecretManager.getKeys(bucketName + "-public");
-	
-		BswabePub pub = SerializeUtils.unserializeBswabePub(pubByte);
+		BswabePub pub = KeyCache.getPublicKey(bucketName);
 		BswabeMsk msk = SerializeUtils.unserializeBswabeMsk(pub, mskByte);
 
 		// Gen private key
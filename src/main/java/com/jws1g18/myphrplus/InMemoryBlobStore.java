@@ -0,0 +1,122 @@
+package com.jws1g18.myphrplus;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Blob store held in memory, for development and tests. Objects are lost when
+ * the application stops.
+ */
+public class InMemoryBlobStore implements BlobStore {
+    private final Map<String, Map<String, Entry>> buckets = new ConcurrentHashMap<>();
+    private final AtomicLong generations = new AtomicLong();
+
+    @Override
+    public void createBucket(String bucketName) throws IOException {
+        if (buckets.putIfAbsent(bucketName, new ConcurrentHashMap<>()) != null) {
+            throw new IOException("Bucket " + bucketName + " already exists");
+        }
+    }
+
+    @Override
+    public boolean put(String bucketName, String objectName, String type, Writer writer) throws IOException {
+        Map<String, Entry> bucket = bucket(bucketName);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!writer.write(out)) {
+            return false;
+        }
+        bucket.put(objectName, new Entry(out.toByteArray(), generations.incrementAndGet()));
+        return true;
+    }
+
+    @Override
+    public void put(String bucketName, String objectName, String type, byte[] data) throws IOException {
+        bucket(bucketName).put(objectName, new Entry(data.clone(), generations.incrementAndGet()));
+    }
+
+    @Override
+    public StoredObject stat(String bucketName, String objectName) throws IOException {
+        Entry entry = bucket(bucketName).get(objectName);
+        if (entry == null) {
+            return null;
+        }
+        return new StoredObject(bucketName, objectName, entry.data.length, entry.generation);
+    }
+
+    @Override
+    public Reader open(StoredObject object) throws IOException {
+        Entry entry = bucket(object.bucketName).get(object.objectName);
+        if (entry == null || entry.generation != object.generation) {
+            throw new FileNotFoundException("Object " + object.objectName + " not found");
+        }
+        ByteBuffer buf = ByteBuffer.wrap(entry.data).asReadOnlyBuffer();
+        return new Reader() {
+            private boolean open = true;
+
+            @Override
+            public int read(ByteBuffer dst) {
+                if (!buf.hasRemaining()) {
+                    return -1;
+                }
+                ByteBuffer slice = buf.slice();
+                int len = Math.min(slice.remaining(), dst.remaining());
+                slice.limit(len);
+                dst.put(slice);
+                buf.position(buf.position() + len);
+                return len;
+            }
+
+            @Override
+            public void seek(long position) {
+                buf.position((int) Math.min(position, buf.limit()));
+            }
+
+            @Override
+            public boolean isOpen() {
+                return open;
+            }
+
+            @Override
+            public void close() {
+                open = false;
+            }
+        };
+    }
+
+    @Override
+    public byte[] getAll(String bucketName, String objectName) throws IOException {
+        Entry entry = bucket(bucketName).get(objectName);
+        if (entry == null) {
+            throw new FileNotFoundException("Object " + objectName + " not found");
+        }
+        return entry.data.clone();
+    }
+
+    @Override
+    public boolean delete(String bucketName, String objectName) throws IOException {
+        return bucket(bucketName).remove(objectName) != null;
+    }
+
+    private Map<String, Entry> bucket(String bucketName) throws IOException {
+        Map<String, Entry> bucket = buckets.get(bucketName);
+        if (bucket == null) {
+            throw new FileNotFoundException("Bucket " + bucketName + " not found");
+        }
+        return bucket;
+    }
+
+    private static class Entry {
+        final byte[] data;
+        final long generation;
+
+        Entry(byte[] data, long generation) {
+            this.data = data;
+            this.generation = generation;
+        }
+    }
+}
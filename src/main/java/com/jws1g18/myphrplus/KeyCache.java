@@ -0,0 +1,199 @@
+package com.jws1g18.myphrplus;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.cloud.secretmanager.v1.AccessSecretVersionResponse;
+
+import co.junwei.bswabe.BswabePrv;
+import co.junwei.bswabe.BswabePub;
+import co.junwei.bswabe.SerializeUtils;
+
+/**
+ * In process cache of deserialized ABE keys, saves a Secret Manager call and a
+ * pairing setup on every request that needs a key.
+ *
+ * Cached keys are shared between threads so must be treated as read only,
+ * elements should be duplicated before being modified (as Bswabe does).
+ */
+public class KeyCache {
+    private static final int MAX_PUBLIC_KEYS = 64;
+    // Each key carries roughly 0.5MB of power tables and a small offline encryption pool, see PreparedPub
+    private static final long MAX_PUBLIC_KEY_BYTES = 48L * 1024 * 1024;
+
+    // Access ordered so iteration starts at the least recently used bucket
+    private static final LinkedHashMap<String, PublicKeyEntry> publicKeys = new LinkedHashMap<>(16, 0.75f, true);
+    private static long publicKeyBytes = 0;
+
+    // Private keys are only cached briefly so other instances pick up new key versions quickly
+    private static final int MAX_PRIVATE_KEYS = 1024;
+    private static final long PRIVATE_KEY_TTL_MS = 30 * 1000;
+
+    private static final LinkedHashMap<String, PrivateKeyEntry> privateKeys = new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, PrivateKeyEntry> eldest) {
+            return size() > MAX_PRIVATE_KEYS;
+        }
+    };
+
+    /**
+     * Gets the public key of a bucket, loading it from secret manager if it is not
+     * cached
+     *
+     * @param bucketName Bucket that the public key belongs to
+     * @return Public key
+     * @throws IOException If the key could not be retrieved
+     */
+    public static PreparedPub getPublicKey(String bucketName) throws IOException {
+        synchronized (publicKeys) {
+            PublicKeyEntry entry = publicKeys.get(bucketName);
+            if (entry != null) {
+                return entry.pub;
+            }
+        }
+        // Load outside of the lock so a slow load doesn't block other buckets
+        byte[] pubByte = GCPSecretManager.getKeys(bucketName + "-public");
+        BswabePub pub = SerializeUtils.unserializeBswabePub(pubByte);
+        return putPublicKey(bucketName, pub, pubByte.length);
+    }
+
+    /**
+     * Adds a public key to the cache, for use when a new bucket is created. The
+     * key is prepared with power tables before it is cached.
+     *
+     * @param bucketName Bucket that the public key belongs to
+     * @param pub        Public key
+     * @param size       Size of the serialized key in bytes
+     * @return The cached public key, if another thread loaded the key first its
+     *         key is returned so all threads share the same pairing
+     */
+    public static PreparedPub putPublicKey(String bucketName, BswabePub pub, int size) {
+        // Built outside of the lock, preparing takes a few exponentiations
+        PreparedPub prepared = PreparedPub.of(pub);
+        size += prepared.tableBytes();
+        synchronized (publicKeys) {
+            PublicKeyEntry existing = publicKeys.get(bucketName);
+            if (existing != null) {
+                return existing.pub;
+            }
+            publicKeys.put(bucketName, new PublicKeyEntry(prepared, size));
+            publicKeyBytes += size;
+
+            // Evict least recently used buckets until within bounds
+            Iterator<Map.Entry<String, PublicKeyEntry>> it = publicKeys.entrySet().iterator();
+            while ((publicKeys.size() > MAX_PUBLIC_KEYS || publicKeyBytes > MAX_PUBLIC_KEY_BYTES) && it.hasNext()) {
+                Map.Entry<String, PublicKeyEntry> eldest = it.next();
+                if (eldest.getKey().equals(bucketName)) {
+                    continue;
+                }
+                publicKeyBytes -= eldest.getValue().size;
+                it.remove();
+            }
+            return prepared;
+        }
+    }
+
+    /**
+     * Removes a public key from the cache
+     *
+     * @param bucketName Bucket that the public key belongs to
+     */
+    public static void invalidatePublicKey(String bucketName) {
+        synchronized (publicKeys) {
+            PublicKeyEntry entry = publicKeys.remove(bucketName);
+            if (entry != null) {
+                publicKeyBytes -= entry.size;
+            }
+        }
+    }
+
+    /**
+     * Gets a users private key, loading it from secret manager if it is not cached,
+     * the cached key has expired or it is older than the users current key. The
+     * current version comes from the users document, so a key replaced by another
+     * instance is not used here after the document has changed.
+     *
+     * @param uid        User ID the private key belongs to
+     * @param pub        Public key of the users bucket
+     * @param minVersion Key version recorded on the users document
+     * @return Private key
+     * @throws IOException If the key could not be retrieved
+     */
+    public static BswabePrv getPrivateKey(String uid, BswabePub pub, long minVersion) throws IOException {
+        synchronized (privateKeys) {
+            PrivateKeyEntry entry = privateKeys.get(uid);
+            if (entry != null && entry.version < minVersion) {
+                privateKeys.remove(uid);
+            } else if (entry != null && entry.pub == pub && entry.expires > System.currentTimeMillis()) {
+                return entry.prv;
+            }
+        }
+        AccessSecretVersionResponse response = GCPSecretManager.getLatestVersion(uid);
+        long version = GCPSecretManager.versionNumber(response.getName());
+        BswabePrv prv = SerializeUtils.unserializeBswabePrv(pub, response.getPayload().getData().toByteArray());
+        putPrivateKey(uid, version, pub, prv);
+        return prv;
+    }
+
+    /**
+     * Caches a newly generated private key version, replacing any older version
+     *
+     * @param uid     User ID the private key belongs to
+     * @param version Secret version the key was stored as
+     * @param pub     Public key of the users bucket
+     * @param prv     Private key
+     */
+    public static void updatePrivateKey(String uid, long version, BswabePub pub, BswabePrv prv) {
+        putPrivateKey(uid, version, pub, prv);
+    }
+
+    /**
+     * Removes a private key from the cache, for use when a key is destroyed
+     *
+     * @param uid User ID the private key belongs to
+     */
+    public static void invalidatePrivateKey(String uid) {
+        synchronized (privateKeys) {
+            privateKeys.remove(uid);
+        }
+    }
+
+    private static void putPrivateKey(String uid, long version, BswabePub pub, BswabePrv prv) {
+        synchronized (privateKeys) {
+            // Never replace a newer version with an older one from a slow load
+            PrivateKeyEntry existing = privateKeys.get(uid);
+            if (existing != null && existing.version > version) {
+                return;
+            }
+            privateKeys.put(uid, new PrivateKeyEntry(prv, pub, version, System.currentTimeMillis() + PRIVATE_KEY_TTL_MS));
+        }
+    }
+
+    private static class PrivateKeyEntry {
+        final BswabePrv prv;
+        final BswabePub pub;
+        final long version;
+        final long expires;
+
+        PrivateKeyEntry(BswabePrv prv, BswabePub pub, long version, long expires) {
+            this.prv = prv;
+            this.pub = pub;
+            this.version = version;
+            this.expires = expires;
+        }
+    }
+
+    private static class PublicKeyEntry {
+        final PreparedPub pub;
+        final int size;
+
+        PublicKeyEntry(PreparedPub pub, int size) {
+            this.pub = pub;
+            this.size = size;
+        }
+    }
+}
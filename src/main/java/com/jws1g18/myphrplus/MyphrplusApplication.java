@@ -1,23 +1,30 @@
 package com.jws1g18.myphrplus;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.regex.Pattern;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ArrayNode;
 import com.fasterxml.jackson.databind.node.ObjectNode;
-import com.google.cloud.firestore.QueryDocumentSnapshot;
-import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.firebase.auth.FirebaseAuthException;
 import com.google.firebase.auth.UserRecord;
 import com.jws1g18.myphrplus.DTOS.User;
@@ -25,12 +32,16 @@ import com.jws1g18.myphrplus.DTOS.User;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestHeader;
@@ -39,6 +50,7 @@ import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import co.junwei.bswabe.BswabeMsk;
 import co.junwei.bswabe.BswabePrv;
@@ -48,16 +60,128 @@ import co.junwei.bswabe.SerializeUtils;
 @SpringBootApplication
 @RestController
 public class MyphrplusApplication {
+	static final int MAX_LOG_PAGE = 500;
+	static final int MAX_NEW_DRS = 500;
+
 	Logger logger = LoggerFactory.getLogger(MyphrplusApplication.class);
 
 	Helpers helper = new Helpers();
 	GCPFireBase fireBase = new GCPFireBase(logger, helper);
-	GCPCloudStorage cloudStorage = new GCPCloudStorage(logger);
+	GCPCloudStorage cloudStorage;
+
+	@Value("${myphrplus.secretmanager.channels:2}")
+	int secretManagerChannels;
+
+	@Value("${myphrplus.filelog.spill:${java.io.tmpdir}/myphrplus-file-logs.jsonl}")
+	String fileLogSpill;
+
+	@Value("${myphrplus.deletion.concurrency:8}")
+	int deletionConcurrency;
+
+	@Value("${myphrplus.abe.leaf-threads:0}")
+	int abeLeafThreads;
+
+	@Value("${myphrplus.abe.offline-pool:32}")
+	int abeOfflinePool;
+
+	@Value("${myphrplus.keygen.write-concurrency:8}")
+	int keyWriteConcurrency;
+
+	@Value("${myphrplus.blobstore:gcs}")
+	String blobStoreType;
+
+	@Value("${myphrplus.blobstore.dir:${java.io.tmpdir}/myphrplus-blobs}")
+	String blobStoreDir;
+
+	@Value("${myphrplus.blobcache.enabled:false}")
+	boolean blobCacheEnabled;
+
+	@Value("${myphrplus.blobcache.dir:${java.io.tmpdir}/myphrplus-blob-cache}")
+	String blobCacheDir;
+
+	@Value("${myphrplus.blobcache.max-bytes:1073741824}")
+	long blobCacheMaxBytes;
+
+	AccountDeletion accountDeletion;
 
 	public static void main(String[] args) {
 		SpringApplication.run(MyphrplusApplication.class);
 	}
 
+	/**
+	 * Creates the long lived clients shared by every request
+	 */
+	@PostConstruct
+	void init() throws IOException {
+		GCPSecretManager.init(secretManagerChannels);
+		ABE.initLeafPool(abeLeafThreads);
+		ABE.initOfflinePool(abeOfflinePool);
+		helper.setKeyWriteConcurrency(keyWriteConcurrency);
+		cloudStorage = new GCPCloudStorage(logger, BlobStore.create(blobStoreType, Paths.get(blobStoreDir)));
+		fireBase.startFileLogWriter(Paths.get(fileLogSpill));
+		accountDeletion = new AccountDeletion(fireBase, cloudStorage, logger, deletionConcurrency);
+		accountDeletion.scheduleResume();
+		if (blobCacheEnabled) {
+			cloudStorage.setCache(new BlobCache(Paths.get(blobCacheDir), blobCacheMaxBytes, logger));
+		}
+	}
+
+	/**
+	 * Closes shared clients when the application shuts down
+	 */
+	@PreDestroy
+	void shutdown() {
+		accountDeletion.shutdown();
+		if (cloudStorage.getCache() != null) {
+			cloudStorage.getCache().close();
+		}
+		GCPSecretManager.shutdown();
+		ABE.shutdownLeafPool();
+		ABE.shutdownOfflinePool();
+		fireBase.close();
+	}
+
+	/**
+	 * Gets the user making the request. The users document is read on first use and
+	 * then kept on the authentication token, so it is read at most once per request
+	 * @return User object, or null if the user could not be found
+	 * @throws InterruptedException
+	 * @throws ExecutionException
+	 */
+	User currentUser() throws InterruptedException, ExecutionException {
+		Authentication auth = SecurityContextHolder.getContext().getAuthentication();
+		String uid = auth.getPrincipal().toString();
+		if (!(auth instanceof FirebaseAuthenticationToken)) {
+			return fireBase.getUserObject(uid);
+		}
+		FirebaseAuthenticationToken token = (FirebaseAuthenticationToken) auth;
+		if (token.getUser() == null) {
+			User user = fireBase.getUserObject(uid);
+			if (user != null) {
+				user.uid = uid;
+			}
+			token.setUser(user);
+		}
+		return token.getUser();
+	}
+
+	/**
+	 * Gets the role of the user making the request
+	 * @return Users role, or error message
+	 */
+	FunctionResponse currentRole() {
+		try {
+			User user = currentUser();
+			if (user == null) {
+				return new FunctionResponse(false, "Could not get user role");
+			}
+			return new FunctionResponse(true, user.role);
+		} catch (InterruptedException | ExecutionException e) {
+			logger.error("Could not get user role", e);
+			return new FunctionResponse(false, "Could not get user role");
+		}
+	}
+
 	/**
 	 * Adds a new patient to the Firestore
 	 * 
@@ -112,13 +236,19 @@ public class MyphrplusApplication {
 
 		logger.info("Authenticated request to get User info for user: " + uid);
 		// Get user information
-		FunctionResponse getResponse = fireBase.getUser(uid);
-		if (getResponse.successful()) {
-			logger.info("User info request for user: "+ uid + " was successfull");
-			return new ResponseEntity<>(getResponse.getMessage(), HttpStatus.OK);
-		} else {
-			return new ResponseEntity<>(getResponse.getMessage(), HttpStatus.BAD_REQUEST);
+		User user;
+		try {
+			user = currentUser();
+		} catch (InterruptedException | ExecutionException ex) {
+			logger.error("Get failed user failed", ex);
+			return new ResponseEntity<>("Could not get user", HttpStatus.BAD_REQUEST);
+		}
+		if (user == null) {
+			logger.error("User " + uid + " could not be found");
+			return new ResponseEntity<>("User not found in database", HttpStatus.BAD_REQUEST);
 		}
+		logger.info("User info request for user: "+ uid + " was successfull");
+		return new ResponseEntity<>(user.convertToJson(), HttpStatus.OK);
 	}
 
 	/**
@@ -135,42 +265,37 @@ public class MyphrplusApplication {
 		// Get user object
 		User user;
 		try {
-			user = fireBase.getUserObject(uid);
+			user = currentUser();
 		} catch (InterruptedException | ExecutionException e) {
 			logger.error("Couldn't get user object", e);
 			return new ResponseEntity<>("Couldn't get user object", HttpStatus.BAD_REQUEST);
 		}
 
-		if (user.role.equals("DP") || user.role.equals("admin")) {
-			return new ResponseEntity<>("Cannot delete account due to role. Contact System Admin", HttpStatus.BAD_REQUEST);
-		}
-
-		// Delete files
-		for(String fileRef: user.files){
-			FunctionResponse deleteResponse = fireBase.deleteFile(uid, fileRef);
-			if(deleteResponse.successful() && !deleteResponse.getMessage().equals("No delete needed")){
-				Boolean delete = cloudStorage.deleteFile(user.bucketName, deleteResponse.getMessage());
-				if(delete){
-					logger.info("File: " + fileRef + " deleted from cloud storage during account deletion");
-				}
-				else{
-					return new ResponseEntity<>("Error occured whilst deleting your files", HttpStatus.BAD_REQUEST);
-				}
-			} else if(!deleteResponse.successful()) {
-				return new ResponseEntity<>(deleteResponse.getMessage(), HttpStatus.BAD_REQUEST);
-			}
-		}
-
-		// Delete user
-		FunctionResponse deleteResponse = fireBase.deleteUser(uid);
+		// Files and account are deleted in the background, progress is reported by /deleteUserStatus.
+		// Accounts that cannot be deleted are rejected before anything is removed
+		FunctionResponse deleteResponse = accountDeletion.start(user);
 		if (deleteResponse.successful()) {
-			logger.info("User: " + uid + " successfully deleted");
-			return new ResponseEntity<>(deleteResponse.getMessage(), HttpStatus.OK);
+			logger.info("Deletion of user: " + uid + " started");
+			return new ResponseEntity<>(deleteResponse.getMessage(), HttpStatus.ACCEPTED);
 		} else {
 			return new ResponseEntity<>(deleteResponse.getMessage(), HttpStatus.BAD_REQUEST);
 		}
 	}
 
+	/**
+	 * Returns the progress of the users account deletion
+	 * @return
+	 */
+	@RequestMapping(method = RequestMethod.GET, path = "/deleteUserStatus")
+	public ResponseEntity<?> deleteUserStatus() {
+		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
+		FunctionResponse statusResponse = accountDeletion.getStatus(uid);
+		if (statusResponse.successful()) {
+			return new ResponseEntity<>(statusResponse.getMessage(), HttpStatus.OK);
+		}
+		return new ResponseEntity<>(statusResponse.getMessage(), HttpStatus.BAD_REQUEST);
+	}
+
 	/***
 	 * Uploads a file to the cloud storage
 	 * 
@@ -188,12 +313,12 @@ public class MyphrplusApplication {
 		logger.info("Authenticated request from user: " + uid + " to upload file with name: " + name);
 
 		// Check user role
-		FunctionResponse roleCheck = fireBase.getRole(uid);
+		FunctionResponse roleCheck = currentRole();
 		if (roleCheck.successful() && roleCheck.getMessage().equals("Patient")) {
 			// Get Patient object
 			User user;
 			try {
-				user = fireBase.getUserObject(uid);
+				user = currentUser();
 			} catch (InterruptedException | ExecutionException ex) {
 				logger.error("Get patient failed", ex);
 				return new ResponseEntity<>("Get patient object failed", HttpStatus.BAD_REQUEST);
@@ -223,22 +348,22 @@ public class MyphrplusApplication {
 		// Check auth token
 		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
 		logger.info("Authenticated request from user: " + uid + " to upload file with name: " + name);
-		FunctionResponse roleCheck = fireBase.getRole(uid);
+		FunctionResponse roleCheck = currentRole();
 		if (roleCheck.successful() && (roleCheck.getMessage().equals("DR") || roleCheck.getMessage().equals("DP"))) {
 			//Get patients
 			ArrayList<String> uids = new ArrayList<>();
 			if(roleCheck.getMessage().equals("DR")){
 				uids.add(uid);
 				for(String user: users){
-					QuerySnapshot qs;
+					DocumentSnapshot patient;
 					try {
-						qs = fireBase.queryUsers("nhsnum", user);
+						patient = fireBase.getPatientByNHSnum(user);
 					} catch (InterruptedException | ExecutionException e) {
 						logger.error("Could not get user: " + user, e);
 						return new ResponseEntity<>("Could not find user with NHS num: " + user, HttpStatus.BAD_REQUEST);
 					}
-					for(QueryDocumentSnapshot doc: qs.getDocuments()){
-						uids.add(doc.getId());
+					if(patient != null){
+						uids.add(patient.getId());
 					}
 				}
 			} else if (roleCheck.getMessage().equals("DP")){
@@ -263,48 +388,50 @@ public class MyphrplusApplication {
 		// Get User object
 		User user;
 		try {
-			user = fireBase.getUserObject(uid);
+			user = currentUser();
 		} catch (InterruptedException | ExecutionException ex) {
 			logger.error("Get user failed", ex);
 			return new ResponseEntity<>("Get user object failed", HttpStatus.BAD_REQUEST);
 		}
 		
-		// Check file type + extension
-		FunctionResponse typeCheck = helper.detectFileType(file);
-		if (!typeCheck.successful()) {
-			return new ResponseEntity<>(typeCheck.getMessage(), HttpStatus.BAD_REQUEST);
-		}
-		String extension = typeCheck.getMessage().split(" ")[0];
-		String type = typeCheck.getMessage().split(" ")[1];
+		// Read the file once, detecting its type from the start then encrypting straight into cloud storage
+		String filepath = user.parent + "/" + uid + "/" + RandomStringUtils.random(20);
+		String extension;
+		String type;
+		try (InputStream in = new BufferedInputStream(file.getInputStream(), Helpers.SNIFF_BYTES)) {
+			// Check file type + extension
+			in.mark(Helpers.SNIFF_BYTES);
+			byte[] head = in.readNBytes(Helpers.SNIFF_BYTES);
+			in.reset();
+			FunctionResponse typeCheck = helper.detectFileType(file.getOriginalFilename(), head);
+			if (!typeCheck.successful()) {
+				return new ResponseEntity<>(typeCheck.getMessage(), HttpStatus.BAD_REQUEST);
+			}
+			extension = typeCheck.getMessage().split(" ")[0];
+			type = typeCheck.getMessage().split(" ")[1];
 
-		// Encrypt File
-		byte[] pubByte;
-		try {
-			pubByte = GCPSecretManager.getKeys(user.bucketName + "-public");
-		} catch (IOException e) {
-			logger.error("Could not get public key for: " + user.bucketName, e);
-			return new ResponseEntity<>("Could not get public key", HttpStatus.BAD_REQUEST);
-		}
-		BswabePub pub = SerializeUtils.unserializeBswabePub(pubByte);
-		byte[] fileBytes;
-		try {
-			fileBytes = file.getBytes();
+			// Encrypt and upload file
+			BswabePub pub;
+			try {
+				pub = KeyCache.getPublicKey(user.bucketName);
+			} catch (IOException e) {
+				logger.error("Could not get public key for: " + user.bucketName, e);
+				return new ResponseEntity<>("Could not get public key", HttpStatus.BAD_REQUEST);
+			}
+			FunctionResponse uploadResponse = cloudStorage.uploadFile(user.bucketName, filepath, type, out -> {
+				if (!ABE.encrypt(pub, accessPolicy, in, out)) {
+					logger.error("Could not encrypt file");
+					return false;
+				}
+				return true;
+			});
+			if (!uploadResponse.successful()) {
+				return new ResponseEntity<>(uploadResponse.getMessage(), HttpStatus.BAD_REQUEST);
+			}
 		} catch (IOException e) {
 			logger.error("Could not read file", e);
 			return new ResponseEntity<>("Could not read file", HttpStatus.BAD_REQUEST);
 		}
-		byte[] encFile = ABE.encrypt(pub, accessPolicy, fileBytes);
-		if(encFile == null) {
-			logger.error("Could not encrypt file");
-			return new ResponseEntity<>("Could not encrypt file", HttpStatus.BAD_REQUEST);
-		}
-
-		// Upload object
-		String filepath = user.parent + "/" + uid + "/" + RandomStringUtils.random(20);
-		FunctionResponse uploadResponse = cloudStorage.uploadFile(user.bucketName, filepath, encFile, type);
-		if (!uploadResponse.successful()) {
-			return new ResponseEntity<>(uploadResponse.getMessage(), HttpStatus.BAD_REQUEST);
-		}
 
 		// Add refrence to firestore
 		Map<String, Object> fileInfo = new HashMap<>();
@@ -314,21 +441,11 @@ public class MyphrplusApplication {
 		fileInfo.put("uploader", uid);
 		fileInfo.put("fileName", fileName);
 
-		String fileRef;
-		try {
-			fileRef = fireBase.addFile(fileInfo);
-		} catch (InterruptedException | ExecutionException ex) {
-			logger.error("Adding file reference to firestore failed", ex);
-			return new ResponseEntity<>("Adding file reference to firestore failed", HttpStatus.BAD_REQUEST);
-		}
-
-
-		for (String uidTemp : uids) {
-			try {
-				fireBase.updateArray(uidTemp, "files", fileRef);
-			} catch (InterruptedException | ExecutionException ex) {
-				logger.error("Adding file reference to user " + uidTemp + " failed", ex);
-			}
+		// File and every users reference are written together, so no user can miss the file
+		FunctionResponse addResponse = fireBase.addFileAndShare(fileInfo, uids);
+		if (!addResponse.successful()) {
+			cloudStorage.deleteFile(user.bucketName, filepath);
+			return new ResponseEntity<>(addResponse.getMessage(), HttpStatus.BAD_REQUEST);
 		}
 
 		logger.info("File upload for user:" + uid + " successful");
@@ -354,7 +471,7 @@ public class MyphrplusApplication {
 			else{
 				User user;
 				try {
-					user = fireBase.getUserObject(uid);
+					user = currentUser();
 				} catch (InterruptedException | ExecutionException e) {
 					logger.error("Couldn't get user:"+ uid + " object", e);
 					return new ResponseEntity<>("Failed to get user object", HttpStatus.BAD_REQUEST);
@@ -380,7 +497,7 @@ public class MyphrplusApplication {
 	@RequestMapping(value = "/getUserRole", method = RequestMethod.GET)
 	public ResponseEntity<?> getUserRole(@RequestHeader("Xx-Firebase-Id-Token") String uidToken) {
 		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
-		FunctionResponse getResponse = fireBase.getRole(uid);
+		FunctionResponse getResponse = currentRole();
 		if (getResponse.successful()) {
 			return new ResponseEntity<>(getResponse.getMessage(), HttpStatus.OK);
 		} else {
@@ -399,7 +516,7 @@ public class MyphrplusApplication {
 		logger.info("Incoming request to add DP with name:" +user.name);
 		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
 		// Check user is admin
-		FunctionResponse roleCheck = fireBase.getRole(uid);
+		FunctionResponse roleCheck = currentRole();
 		if (roleCheck.successful() && roleCheck.getMessage().equals("admin")) {
 			UserRecord userRecord;
 			try {
@@ -410,6 +527,9 @@ public class MyphrplusApplication {
 			}
 			// Create bucket for DP
 			String bucketName = cloudStorage.createBucket(user.name.replace(" ", "-").toLowerCase());
+			if (bucketName == null) {
+				return new ResponseEntity<>("Bucket could not be created", HttpStatus.BAD_REQUEST);
+			}
 
 			// Generate keys for hierarchy
 			Object[] setup = ABE.setup();
@@ -418,7 +538,9 @@ public class MyphrplusApplication {
 
 			// Store Public keys
 			try {
-				GCPSecretManager.storeKey(bucketName + "-public", SerializeUtils.serializeBswabePub(pub));
+				byte[] pubByte = SerializeUtils.serializeBswabePub(pub);
+				GCPSecretManager.storeKey(bucketName + "-public", pubByte);
+				KeyCache.putPublicKey(bucketName, pub, pubByte.length);
 			} catch (IOException ex) {
 				return new ResponseEntity<>("Public key could not be stored", HttpStatus.BAD_REQUEST);
 			}
@@ -466,28 +588,17 @@ public class MyphrplusApplication {
 		logger.info("Incoming request to add DR with name" + user.name);
 		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
 		// Check user is DP
-		FunctionResponse roleCheck = fireBase.getRole(uid);
+		FunctionResponse roleCheck = currentRole();
 		if (roleCheck.successful() && roleCheck.getMessage().equals("DP")) {
-			// Make user with firebase
-			UserRecord userRecord;
-			try {
-				userRecord = fireBase.registerUser(user.name, user.email, user.password);
-			} catch (FirebaseAuthException ex) {
-				return new ResponseEntity<>("Creating user failed", HttpStatus.BAD_REQUEST);
+			Map<String, Map<String, String[]>> pending = new HashMap<>();
+			FunctionResponse registerResponse = registerDR(user, uid, pending);
+			if (!registerResponse.successful()) {
+				return new ResponseEntity<>(registerResponse.getMessage(), HttpStatus.BAD_REQUEST);
 			}
 
-			// Create Attribute Array
-			ArrayList<String> attributes = new ArrayList<>();
-			attributes.add("uid_" + userRecord.getUid());
-			attributes.add("DR");
-
-			FunctionResponse addResponse = fireBase.addDR(user, uid, attributes, userRecord);
-			if (!addResponse.successful()) {
-				return new ResponseEntity<>(addResponse.getMessage(), HttpStatus.BAD_REQUEST);
-			}
-
-			FunctionResponse keyResponse = helper.genAndStorePrivKeys(addResponse.getMessage(),
-					attributes.toArray(new String[0]), userRecord.getUid());
+			Map.Entry<String, Map<String, String[]>> bucket = pending.entrySet().iterator().next();
+			FunctionResponse keyResponse = helper.genAndStorePrivKeys(bucket.getKey(),
+					bucket.getValue().get(registerResponse.getMessage()), registerResponse.getMessage());
 			if (keyResponse.successful()) {
 				logger.info("DR: " +user.name + " successfully created");
 				return new ResponseEntity<>("DR successfully created", HttpStatus.OK);
@@ -501,6 +612,92 @@ public class MyphrplusApplication {
 		}
 	}
 
+	/**
+	 * Adds many Data Requesters at once, such as the clinicians of a new ward. Users are
+	 * added to the firestore one at a time, then their private keys are generated and
+	 * stored as a batch
+	 * @param users Data Requesters to add
+	 * @return JSON object of the result for each email
+	 */
+	@RequestMapping(value = "/newDRs", method = RequestMethod.POST)
+	public ResponseEntity<?> newDRs(@RequestBody List<User> users) {
+		logger.info("Incoming request to add " + users.size() + " DRs");
+		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
+		if (users.size() > MAX_NEW_DRS) {
+			return new ResponseEntity<>("At most " + MAX_NEW_DRS + " DRs can be added at once", HttpStatus.BAD_REQUEST);
+		}
+		// Check user is DP
+		FunctionResponse roleCheck = currentRole();
+		if (roleCheck.successful() && roleCheck.getMessage().equals("DP")) {
+			ObjectMapper mapper = new ObjectMapper();
+			ObjectNode results = mapper.createObjectNode();
+			// Attributes of the DRs still needing keys, by bucket then user ID
+			Map<String, Map<String, String[]>> pending = new HashMap<>();
+			Map<String, String> emails = new HashMap<>();
+			for (User user : users) {
+				FunctionResponse registerResponse = registerDR(user, uid, pending);
+				if (!registerResponse.successful()) {
+					results.put(user.email, registerResponse.getMessage());
+					continue;
+				}
+				emails.put(registerResponse.getMessage(), user.email);
+			}
+
+			for (Map.Entry<String, Map<String, String[]>> bucket : pending.entrySet()) {
+				helper.genAndStorePrivKeys(bucket.getKey(), bucket.getValue()).forEach((drUid, keyResponse) -> {
+					if (keyResponse.successful()) {
+						results.put(emails.get(drUid), "DR successfully created");
+					} else {
+						logger.error("Key for DR " + drUid + " failed: " + keyResponse.getMessage());
+						results.put(emails.get(drUid), "DR Creation failed");
+					}
+				});
+			}
+			logger.info(emails.size() + " of " + users.size() + " DRs added by " + uid);
+			try {
+				return new ResponseEntity<>(mapper.writer().writeValueAsString(results), HttpStatus.OK);
+			} catch (JsonProcessingException e) {
+				logger.error("JSON proccessing error");
+				return new ResponseEntity<>("Could not process JSON", HttpStatus.BAD_REQUEST);
+			}
+
+		} else if (roleCheck.successful() && !roleCheck.getMessage().equals("DP")) {
+			return new ResponseEntity<>("You do not have the correct permissions", HttpStatus.BAD_REQUEST);
+		} else {
+			return new ResponseEntity<>(roleCheck.getMessage(), HttpStatus.BAD_REQUEST);
+		}
+	}
+
+	/**
+	 * Registers a Data Requester with firebase auth and adds them to the firestore
+	 * @param user Data Requester to add
+	 * @param dpUid User ID of the DP adding them
+	 * @param pending Attributes of the DRs still needing keys, by bucket then user ID, the new DR is added to it
+	 * @return The new DRs user ID if successful
+	 */
+	private FunctionResponse registerDR(User user, String dpUid, Map<String, Map<String, String[]>> pending) {
+		// Make user with firebase
+		UserRecord userRecord;
+		try {
+			userRecord = fireBase.registerUser(user.name, user.email, user.password);
+		} catch (FirebaseAuthException ex) {
+			return new FunctionResponse(false, "Creating user failed");
+		}
+
+		// Create Attribute Array
+		ArrayList<String> attributes = new ArrayList<>();
+		attributes.add("uid_" + userRecord.getUid());
+		attributes.add("DR");
+
+		FunctionResponse addResponse = fireBase.addDR(user, dpUid, attributes, userRecord);
+		if (!addResponse.successful()) {
+			return addResponse;
+		}
+		pending.computeIfAbsent(addResponse.getMessage(), bucketName -> new LinkedHashMap<>())
+				.put(userRecord.getUid(), attributes.toArray(new String[0]));
+		return new FunctionResponse(true, userRecord.getUid());
+	}
+
 	/**
 	 * Returns a list of a users files
 	 * @param uidToken
@@ -509,7 +706,14 @@ public class MyphrplusApplication {
 	@RequestMapping(value = "/getFiles", method = RequestMethod.GET)
 	public ResponseEntity<?> getFiles(@RequestHeader("Xx-Firebase-Id-Token") String uidToken) {
 		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
-		FunctionResponse fileResponse = fireBase.getFiles(uid);
+		User user;
+		try {
+			user = currentUser();
+		} catch (InterruptedException | ExecutionException ex) {
+			logger.error("Could not get user :" + uid, ex);
+			return new ResponseEntity<>("Getting user object failed", HttpStatus.BAD_REQUEST);
+		}
+		FunctionResponse fileResponse = fireBase.getFiles(user);
 		if (fileResponse.successful()) {
 			return new ResponseEntity<>(fileResponse.getMessage(), HttpStatus.OK);
 		} else {
@@ -518,14 +722,17 @@ public class MyphrplusApplication {
 	}
 
 	/**
-	 * Downloads a file from cloud storage, attempts to decrypt and returns the file if successful 
+	 * Downloads a file from cloud storage, attempts to decrypt and streams the file if successful.
+	 * A single byte range may be requested with a Range header.
 	 * @param uidToken
 	 * @param fileRef
+	 * @param rangeHeader Optional Range header
 	 * @return
 	 */
 	@RequestMapping(value = "/downloadFile", method = RequestMethod.POST)
 	public ResponseEntity<?> downloadFile(
-			@RequestParam("fileRef") String fileRef) {
+			@RequestParam("fileRef") String fileRef,
+			@RequestHeader(value = HttpHeaders.RANGE, required = false) String rangeHeader) {
 		// Check auth
 		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
 		logger.info("Authenticated request from: " + uid + " to download file " + fileRef);
@@ -539,46 +746,94 @@ public class MyphrplusApplication {
 
 		User user;
 		try {
-			user = fireBase.getUserObject(uid);
+			user = currentUser();
 		} catch (InterruptedException | ExecutionException ex) {
 			return new ResponseEntity<>("Couldn't get user object", HttpStatus.BAD_REQUEST);
 		}
 
 		String bucketName = user.bucketName;
 
-		ByteArrayResource file = cloudStorage.downloadObject(bucketName, filePath);
-
-		byte[] pubByte;
-		byte[] prvByte;
+		BswabePub pub;
+		BswabePrv prv;
 		try {
-			pubByte = GCPSecretManager.getKeys(bucketName + "-public");
-			prvByte = GCPSecretManager.getKeys(uid);
+			pub = KeyCache.getPublicKey(bucketName);
+			prv = KeyCache.getPrivateKey(uid, pub, user.keyVersion);
 		} catch (IOException ex) {
 			return new ResponseEntity<>("Couldn't retrive keys", HttpStatus.BAD_REQUEST);
 		}
-		BswabePub pub = SerializeUtils.unserializeBswabePub(pubByte);
-		BswabePrv prv = SerializeUtils.unserializeBswabePrv(pub, prvByte);
-		byte[] decFile;
+
+		BlobStore.StoredObject object = cloudStorage.getObject(bucketName, filePath);
+		if (object == null) {
+			return new ResponseEntity<>("File not found", HttpStatus.BAD_REQUEST);
+		}
+
+		// Recover the files key before responding, so a failure can still be reported
+		ByteBuffer cached = cloudStorage.getCached(object);
+		EncFileReader reader;
+		try {
+			reader = cached != null ? EncFileReader.open(cached)
+					: EncFileReader.open(cloudStorage.openObject(object), object.size);
+		} catch (IOException e) {
+			logger.error("Could not open file: " + filePath, e);
+			return new ResponseEntity<>("File not found", HttpStatus.BAD_REQUEST);
+		}
+		boolean unlocked;
 		try {
-			decFile = ABE.decrypt(pub, prv, file.getInputStream());
-		} catch (Exception e) {
+			unlocked = reader.unlock(pub, prv);
+		} catch (IOException e) {
 			logger.error("File couldn't be decrytped", e);
-			fireBase.addFileLog(user, false, fileRef, uid);
-			return new ResponseEntity<>("File could not be decrypted, May not have correct attributes",
-					HttpStatus.BAD_REQUEST);
+			unlocked = false;
 		}
-		if(decFile == null){
+		if (!unlocked) {
+			reader.close();
 			logger.error("Cannot decrypt, attributes in key do not satisfy policy");
 			fireBase.addFileLog(user, false, fileRef, uid);
 			return new ResponseEntity<>("File could not be decrypted, May not have correct attributes",
 					HttpStatus.BAD_REQUEST);
 		}
 
-		ByteArrayResource resFile = new ByteArrayResource(decFile);
+		// Only a single range is supported, anything else gets the whole file
+		long length = reader.length();
+		long start = 0;
+		long end = length - 1;
+		boolean partial = false;
+		if (rangeHeader != null) {
+			List<HttpRange> ranges;
+			try {
+				ranges = HttpRange.parseRanges(rangeHeader);
+			} catch (IllegalArgumentException e) {
+				ranges = List.of();
+			}
+			if (ranges.size() == 1) {
+				start = ranges.get(0).getRangeStart(length);
+				end = ranges.get(0).getRangeEnd(length);
+				if (start >= length || start > end) {
+					reader.close();
+					return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+							.header(HttpHeaders.CONTENT_RANGE, "bytes */" + length).build();
+				}
+				partial = true;
+			}
+		}
+
 		logger.info("Request to download file: " + fileRef + " was successful");
 		fireBase.addFileLog(user, true, fileRef, uid);
-		return ResponseEntity.ok().contentLength(resFile.contentLength())
-				.contentType(MediaType.parseMediaType(fileType)).body(resFile);
+
+		long from = start;
+		long count = end - start + 1;
+		StreamingResponseBody body = out -> {
+			try (reader) {
+				reader.write(from, count, out);
+			}
+		};
+		ResponseEntity.BodyBuilder response = partial
+				? ResponseEntity.status(HttpStatus.PARTIAL_CONTENT)
+						.header(HttpHeaders.CONTENT_RANGE, "bytes " + start + "-" + end + "/" + length)
+				: ResponseEntity.ok();
+		if (reader.isSeekable()) {
+			response.header(HttpHeaders.ACCEPT_RANGES, "bytes");
+		}
+		return response.contentLength(count).contentType(MediaType.parseMediaType(fileType)).body(body);
 	}
 
 	/**
@@ -593,17 +848,74 @@ public class MyphrplusApplication {
 		}
 		return new ResponseEntity<>(dpResponse.getMessage(), HttpStatus.BAD_REQUEST);
 	}
+
+	/**
+	 * Returns hit, miss and size counts of the local object cache, for sizing the cache
+	 * @return
+	 */
+	@RequestMapping(value = "/blobCacheStats", method = RequestMethod.GET)
+	public ResponseEntity<?> blobCacheStats() {
+		FunctionResponse roleCheck = currentRole();
+		if (!roleCheck.successful()) {
+			return new ResponseEntity<>(roleCheck.getMessage(), HttpStatus.BAD_REQUEST);
+		}
+		if (!roleCheck.getMessage().equals("admin")) {
+			return new ResponseEntity<>("You do not have the correct permissions", HttpStatus.BAD_REQUEST);
+		}
+		if (cloudStorage.getCache() == null) {
+			return new ResponseEntity<>("Blob cache is not enabled", HttpStatus.BAD_REQUEST);
+		}
+		try {
+			return new ResponseEntity<>(new ObjectMapper().writeValueAsString(cloudStorage.getCache().stats()),
+					HttpStatus.OK);
+		} catch (JsonProcessingException e) {
+			logger.error("Couldn't process JSON", e);
+			return new ResponseEntity<>("Couldn't process JSON", HttpStatus.BAD_REQUEST);
+		}
+	}
 	
 	/**
-	 * Returns a list of a DR's patients
+	 * Returns hit and miss counts of the offline encryption pool, for sizing the pool
+	 * @return
+	 */
+	@RequestMapping(value = "/offlinePoolStats", method = RequestMethod.GET)
+	public ResponseEntity<?> offlinePoolStats() {
+		FunctionResponse roleCheck = currentRole();
+		if (!roleCheck.successful()) {
+			return new ResponseEntity<>(roleCheck.getMessage(), HttpStatus.BAD_REQUEST);
+		}
+		if (!roleCheck.getMessage().equals("admin")) {
+			return new ResponseEntity<>("You do not have the correct permissions", HttpStatus.BAD_REQUEST);
+		}
+		OfflineEncPool offlinePool = ABE.getOfflinePool();
+		if (offlinePool == null) {
+			return new ResponseEntity<>("Offline encryption pool is not enabled", HttpStatus.BAD_REQUEST);
+		}
+		try {
+			return new ResponseEntity<>(new ObjectMapper().writeValueAsString(offlinePool.stats()), HttpStatus.OK);
+		} catch (JsonProcessingException e) {
+			logger.error("Couldn't process JSON", e);
+			return new ResponseEntity<>("Couldn't process JSON", HttpStatus.BAD_REQUEST);
+		}
+	}
+
+	/**
+	 * Returns a list of a DR's patients, a page of patients is returned if a limit is given
 	 * @param uidToken
+	 * @param offset Index of the first patient to return
+	 * @param limit Maximum number of patients to return
 	 * @return
 	 */
 	@RequestMapping(value="/getPatients", method=RequestMethod.GET)
-	public ResponseEntity<?> getPatients(@RequestHeader("Xx-Firebase-Id-Token") String uidToken){
+	public ResponseEntity<?> getPatients(@RequestHeader("Xx-Firebase-Id-Token") String uidToken,
+			@RequestParam(value = "offset", defaultValue = "0") int offset,
+			@RequestParam(value = "limit", required = false) Integer limit){
 		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
 		logger.info("Authenticated request from user: " + uid + " to get list of patients");
-		FunctionResponse pResponse = fireBase.getAllPatients(uid);
+		if(offset < 0 || (limit != null && limit <= 0)){
+			return new ResponseEntity<>("Invalid page", HttpStatus.BAD_REQUEST);
+		}
+		FunctionResponse pResponse = fireBase.getAllPatients(uid, offset, limit == null ? -1 : limit);
 		if(pResponse.successful()){
 			logger.info("Get patients request from " + uid + " successfull");
 			return new ResponseEntity<>(pResponse.getMessage(), HttpStatus.OK);
@@ -622,10 +934,17 @@ public class MyphrplusApplication {
 		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
 		logger.info("Authenticated request from user: " +uid + " to get patient: " +nhsNum + " (nhsnum) files");
 		// Check user is DR
-		FunctionResponse roleCheck = fireBase.getRole(uid);
+		FunctionResponse roleCheck = currentRole();
 		if (roleCheck.successful() && roleCheck.getMessage().equals("DR")) {
 			//Get patient files
-			FunctionResponse fileResponse = fireBase.getPatientFiles(nhsNum, uid);
+			User drObject;
+			try {
+				drObject = currentUser();
+			} catch (InterruptedException | ExecutionException ex) {
+				logger.error("Getting DR object failed", ex);
+				return new ResponseEntity<>("Couldn't get DR object", HttpStatus.BAD_REQUEST);
+			}
+			FunctionResponse fileResponse = fireBase.getPatientFiles(nhsNum, drObject);
 			if(fileResponse.successful()){
 				logger.info("Request to get user: " + nhsNum + " files successful");
 				return new ResponseEntity<>(fileResponse.getMessage(), HttpStatus.OK);
@@ -651,7 +970,7 @@ public class MyphrplusApplication {
 		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
 		logger.info("Authenticated request from: " + uid + " to get a user: " + identifier + " attributes ");
 		// Check user is DP
-		FunctionResponse roleCheck = fireBase.getRole(uid);
+		FunctionResponse roleCheck = currentRole();
 		if (roleCheck.successful() && roleCheck.getMessage().equals("DP")) {
 			FunctionResponse attrResponse = fireBase.getUserAttributes(identifier);
 			if(attrResponse.successful()){
@@ -684,7 +1003,7 @@ public class MyphrplusApplication {
 			return new ResponseEntity<>("Invalid attribute entered", HttpStatus.BAD_REQUEST);
 		}
 		// Check user is DP
-		FunctionResponse roleCheck = fireBase.getRole(uid);
+		FunctionResponse roleCheck = currentRole();
 		if (roleCheck.successful() && roleCheck.getMessage().equals("DP")) {
 			FunctionResponse addResponse = fireBase.updateUserAttributes(identifier, attribute);
 			if(addResponse.successful()){
@@ -718,7 +1037,7 @@ public class MyphrplusApplication {
 			return new ResponseEntity<>("Cannot delete this attribute", HttpStatus.BAD_REQUEST);
 		}
 		// Check user is DP
-		FunctionResponse roleCheck = fireBase.getRole(uid);
+		FunctionResponse roleCheck = currentRole();
 		if (roleCheck.successful() && roleCheck.getMessage().equals("DP")) {
 			FunctionResponse delResponse = fireBase.removeUserAttribute(identifier, attribute);
 			if(delResponse.successful()){
@@ -753,9 +1072,16 @@ public class MyphrplusApplication {
 		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
 		logger.info("Authenticated request from: " + uid + " to get all users in bucket");
 		//Check role
-		FunctionResponse roleCheck = fireBase.getRole(uid);
+		FunctionResponse roleCheck = currentRole();
 		if (roleCheck.successful() && roleCheck.getMessage().equals("DP")) {
-			FunctionResponse getResponse = fireBase.getAllInBucket(uid);
+			User user;
+			try {
+				user = currentUser();
+			} catch (InterruptedException | ExecutionException ex) {
+				logger.error("Could not get user object", ex);
+				return new ResponseEntity<>("Could not find user", HttpStatus.BAD_REQUEST);
+			}
+			FunctionResponse getResponse = fireBase.getAllInBucket(user);
 			if(getResponse.successful()){
 				logger.info("Request from " + uid + " to get all users in bucket successful");
 				return new ResponseEntity<>(getResponse.getMessage(), HttpStatus.OK);
@@ -782,7 +1108,7 @@ public class MyphrplusApplication {
 		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
 		logger.info("Authenticated request from: " + uid + " to get reminders ");
 		//Check role
-		FunctionResponse roleCheck = fireBase.getRole(uid);
+		FunctionResponse roleCheck = currentRole();
 		if (roleCheck.successful() && roleCheck.getMessage().equals("DR")) {
 			FunctionResponse reminderResponse = fireBase.getPatientReminders(nhsnum, uid);
 			if(reminderResponse.successful()){
@@ -818,7 +1144,7 @@ public class MyphrplusApplication {
 			return new ResponseEntity<>("Invalid reminder entered", HttpStatus.BAD_REQUEST);
 		}
 		//Check role
-		FunctionResponse roleCheck = fireBase.getRole(uid);
+		FunctionResponse roleCheck = currentRole();
 		if (roleCheck.successful() && roleCheck.getMessage().equals("DR")) {
 			FunctionResponse addResponse = fireBase.addReminder(nhsnum, reminder, uid);
 			if(addResponse.successful()){
@@ -858,7 +1184,7 @@ public class MyphrplusApplication {
 		logger.info("Authenticated request from: " + uid + " to get dashboard information");
 		User user;
         try {
-            user = fireBase.getUserObject(uid);
+            user = currentUser();
         } catch (InterruptedException | ExecutionException e) {
             logger.error("Could not get user", e);
             return new ResponseEntity<>("Could not get user", HttpStatus.BAD_REQUEST);
@@ -868,7 +1194,7 @@ public class MyphrplusApplication {
         ObjectNode objectNode = mapper.createObjectNode();
         if(user.role.equals("Patient")){
 			try {
-				objectNode.put("DR", fireBase.getDB().collection("users").document(user.parent).get().get().getString("name"));
+				objectNode.put("DR", fireBase.getUserSnapshot(user.parent).getString("name"));
 			} catch (InterruptedException | ExecutionException e) {
 				logger.error("Couldn't get parent: " + user.parent);
 			}
@@ -915,14 +1241,14 @@ public class MyphrplusApplication {
 		}
 
 		//Check role
-		FunctionResponse roleCheck = fireBase.getRole(uid);
+		FunctionResponse roleCheck = currentRole();
 		if (roleCheck.successful() && roleCheck.getMessage().equals("Patient")) {
 			String cleanContent = helper.cleanHtml(diaryContent);
 			String diaryDate = DateTimeFormatter.ofLocalizedDate(FormatStyle.FULL).format(LocalDateTime.now()); //Get current time in nice format
 
 			User user;
 			try {
-				user = fireBase.getUserObject(uid);
+				user = currentUser();
 			} catch (InterruptedException | ExecutionException ex) {
 				return new ResponseEntity<>("Couldn't get user object", HttpStatus.BAD_REQUEST);
 			}
@@ -930,14 +1256,13 @@ public class MyphrplusApplication {
 			String accessPolicy = "uid_" + uid + " uid_" + user.parent + " 1of2";
 
 			// Encrypt Diary
-			byte[] pubByte;
+			BswabePub pub;
 			try {
-				pubByte = GCPSecretManager.getKeys(user.bucketName + "-public");
+				pub = KeyCache.getPublicKey(user.bucketName);
 			} catch (IOException e) {
 				logger.error("Could not get public key for: " + user.bucketName, e);
 				return new ResponseEntity<>("Could not get public key", HttpStatus.BAD_REQUEST);
 			}
-			BswabePub pub = SerializeUtils.unserializeBswabePub(pubByte);
 			byte[] encFile = ABE.encrypt(pub, accessPolicy, cleanContent.getBytes());
 			if(encFile == null){
 				logger.error("Could not encrypt diary");
@@ -981,7 +1306,7 @@ public class MyphrplusApplication {
 		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
 		logger.info("Authenticated request from: " + uid + " to add get diaries list " + identifier);
 		//Check role
-		FunctionResponse roleCheck = fireBase.getRole(uid);
+		FunctionResponse roleCheck = currentRole();
 		if (roleCheck.successful() && roleCheck.getMessage().equals("Patient")) {
 			FunctionResponse getResponse = fireBase.getDiaries(uid);
 			if(getResponse.successful()){
@@ -1015,7 +1340,7 @@ public class MyphrplusApplication {
 		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
 		logger.info("Authenticated request from: " + uid + " to add get diary :" + identifier + "/" + diaryRef);
 		//Check role
-		FunctionResponse roleCheck = fireBase.getRole(uid);
+		FunctionResponse roleCheck = currentRole();
 		if (roleCheck.successful() && (roleCheck.getMessage().equals("Patient") || roleCheck.getMessage().equals("DR"))) {
 			String location = null;
 			if(roleCheck.getMessage().equals("Patient")){
@@ -1034,23 +1359,21 @@ public class MyphrplusApplication {
 			}
 			User user;
 			try {
-				user = fireBase.getUserObject(uid);
+				user = currentUser();
 			} catch (InterruptedException | ExecutionException ex) {
 				return new ResponseEntity<>("Couldn't get user object", HttpStatus.BAD_REQUEST);
 			}
 
 			ByteArrayResource file = cloudStorage.downloadObject(user.bucketName, location);
 
-			byte[] pubByte;
-			byte[] prvByte;
+			BswabePub pub;
+			BswabePrv prv;
 			try {
-				pubByte = GCPSecretManager.getKeys(user.bucketName + "-public");
-				prvByte = GCPSecretManager.getKeys(uid);
+				pub = KeyCache.getPublicKey(user.bucketName);
+				prv = KeyCache.getPrivateKey(uid, pub, user.keyVersion);
 			} catch (IOException ex) {
 				return new ResponseEntity<>("Couldn't retrive keys", HttpStatus.BAD_REQUEST);
 			}
-			BswabePub pub = SerializeUtils.unserializeBswabePub(pubByte);
-			BswabePrv prv = SerializeUtils.unserializeBswabePrv(pub, prvByte);
 			byte[] decFile;
 			try {
 				decFile = ABE.decrypt(pub, prv, file.getInputStream());
@@ -1081,7 +1404,7 @@ public class MyphrplusApplication {
 		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
 		logger.info("Authenticated request from: " + uid + " to add get diary: " + diaryRef);
 		//Check role
-		FunctionResponse roleCheck = fireBase.getRole(uid);
+		FunctionResponse roleCheck = currentRole();
 		if (roleCheck.successful() && (roleCheck.getMessage().equals("Patient"))){
 			FunctionResponse getLocResponse = fireBase.getDiaryFilelocation(diaryRef, uid);
 			if(!getLocResponse.successful()){
@@ -1093,7 +1416,7 @@ public class MyphrplusApplication {
 			}
 			User user;
 			try {
-				user = fireBase.getUserObject(uid);
+				user = currentUser();
 			} catch (InterruptedException | ExecutionException e) {
 				logger.error("Couldn't get user:"+ uid + " object", e);
 				return new ResponseEntity<>("Failed to get user object", HttpStatus.BAD_REQUEST);
@@ -1112,15 +1435,30 @@ public class MyphrplusApplication {
 	}
 
 	/**
-	 * Returns a access logs for a file, if the user has access to that file
+	 * Returns a access logs for a file, if the user has access to that file.
+	 * Logs are newest first, a page of logs is returned if a limit is given
 	 * @param fileRef File reference of file to check
+	 * @param limit Maximum number of logs to return
+	 * @param cursor Cursor of the page to return, from the previous page
 	 * @return
 	 */
 	@RequestMapping(value="/viewFileLogs", method=RequestMethod.POST)
-	public ResponseEntity<?> viewFileLogs(@RequestParam("fileRef") String fileRef){
+	public ResponseEntity<?> viewFileLogs(@RequestParam("fileRef") String fileRef,
+			@RequestParam(value = "limit", required = false) Integer limit,
+			@RequestParam(value = "cursor", required = false) String cursor){
 		String uid = SecurityContextHolder.getContext().getAuthentication().getPrincipal().toString();
 		logger.info("Authenticated request from " + uid + " to get file logs for " + fileRef);
-		FunctionResponse logResponse = fireBase.getFileLogs(fileRef, uid);
+		User user;
+		try {
+			user = currentUser();
+		} catch (InterruptedException | ExecutionException ex) {
+			logger.error("Could not get user Object for " + uid, ex);
+			return new ResponseEntity<>("Couldn't get user object", HttpStatus.BAD_REQUEST);
+		}
+		if (limit != null && (limit <= 0 || limit > MAX_LOG_PAGE)) {
+			return new ResponseEntity<>("Invalid limit", HttpStatus.BAD_REQUEST);
+		}
+		FunctionResponse logResponse = fireBase.getFileLogs(fileRef, user, limit == null ? -1 : limit, cursor);
 		if(logResponse.successful()){
 			return new ResponseEntity<>(logResponse.getMessage(), HttpStatus.OK);
 		}
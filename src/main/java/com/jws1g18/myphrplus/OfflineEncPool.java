@@ -0,0 +1,134 @@
+package com.jws1g18.myphrplus;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Makes the offline part of encryptions (see {@link Cpabe.Offline}) ahead of
+ * time for each cached public key, so an upload only computes the leaves of its
+ * policy. Entries are kept on the PreparedPub of a bucket and go when KeyCache
+ * evicts it.
+ *
+ * Entries are made on a single background thread, and only while no
+ * encryption is in flight and the leaf pool has nothing to do. While the server
+ * is busy filling is retried every IDLE_CHECK_MS, so under sustained load pools
+ * are only topped up in the gaps. Thread priorities are ignored on Linux, so
+ * the thread itself would compete with requests for CPU. An encryption that
+ * finds its pool empty makes the whole ciphertext itself, as it did before.
+ */
+public class OfflineEncPool {
+    static final long IDLE_CHECK_MS = 100;
+
+    private final int perKey;
+    private final BooleanSupplier otherWork;
+    private final ScheduledExecutorService filler;
+    // Encryptions between take and done
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong fills = new AtomicLong();
+
+    /**
+     * @param perKey Most entries to keep for each public key
+     * @param otherWork true while other ABE work is running, such as the leaf pool
+     */
+    public OfflineEncPool(int perKey, BooleanSupplier otherWork) {
+        this.perKey = perKey;
+        this.otherWork = otherWork;
+        this.filler = Executors.newSingleThreadScheduledExecutor(DaemonThreads.named("abe-offline-filler"));
+    }
+
+    /**
+     * Takes an entry for a public key and tops its pool up in the background once
+     * the server is idle. Must be followed by {@link #done()} when the encryption
+     * finishes.
+     * @param pub Public key, should be the cached key of a bucket
+     * @return Entry made with pub, or null if its pool is empty
+     */
+    public Cpabe.Offline take(PreparedPub pub) {
+        inFlight.incrementAndGet();
+        Cpabe.Offline entry = pub.offline.poll();
+        if (entry == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        refill(pub);
+        return entry;
+    }
+
+    /**
+     * Marks an encryption started with {@link #take(PreparedPub)} as finished
+     */
+    public void done() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @return Hit, miss and fill counts for sizing the pools
+     */
+    public Map<String, Object> stats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        stats.put("hits", hitCount);
+        stats.put("misses", missCount);
+        stats.put("hitRatio", hitCount + missCount == 0 ? 0.0 : (double) hitCount / (hitCount + missCount));
+        stats.put("fills", fills.get());
+        stats.put("perKey", perKey);
+        return stats;
+    }
+
+    /**
+     * Stops making entries, entries already made are still used
+     */
+    public void close() {
+        filler.shutdownNow();
+    }
+
+    private void refill(PreparedPub pub) {
+        if (pub.offline.size() >= perKey || !pub.filling.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            filler.submit(() -> fill(pub));
+        } catch (RejectedExecutionException e) {
+            pub.filling.set(false);
+        }
+    }
+
+    /**
+     * Makes one entry then queues the key again, so keys in use at the same time
+     * are topped up in turn. Nothing is made while the server is busy.
+     */
+    private void fill(PreparedPub pub) {
+        boolean queued = false;
+        try {
+            if (inFlight.get() > 0 || otherWork.getAsBoolean()) {
+                filler.schedule(() -> fill(pub), IDLE_CHECK_MS, TimeUnit.MILLISECONDS);
+                queued = true;
+                return;
+            }
+            pub.offline.add(Cpabe.offline(pub));
+            fills.incrementAndGet();
+            if (pub.offline.size() < perKey && !Thread.currentThread().isInterrupted()) {
+                filler.submit(() -> fill(pub));
+                queued = true;
+            }
+        } catch (RejectedExecutionException e) {
+            // Closed
+        } finally {
+            if (!queued) {
+                pub.filling.set(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package com.jws1g18.myphrplus;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import co.junwei.bswabe.BswabePub;
+import it.unisa.dia.gas.jpbc.Element;
+import it.unisa.dia.gas.jpbc.ElementPowPreProcessing;
+
+/**
+ * Public key carrying fixed base power tables for the elements that every
+ * encryption, key generation and delegation raises to a fresh exponent. Building
+ * the tables costs a few exponentiations, so prepared keys should be cached (see
+ * {@link KeyCache}) rather than built per request.
+ *
+ * Prepared keys are shared between threads, the tables are only read after
+ * construction.
+ */
+public class PreparedPub extends BswabePub {
+    private static final int MAX_ATTRIBUTE_HASHES = 1024;
+
+    final ElementPowPreProcessing gPow;
+    final ElementPowPreProcessing hPow;
+    final ElementPowPreProcessing gpPow;
+    final ElementPowPreProcessing gHatAlphaPow;
+    // Only known to the public key returned by setup, it is not serialized
+    final ElementPowPreProcessing fPow;
+    private final int tableBytes;
+
+    // Offline parts of encryptions made ahead of time, see OfflineEncPool
+    final ConcurrentLinkedQueue<Cpabe.Offline> offline = new ConcurrentLinkedQueue<>();
+    final AtomicBoolean filling = new AtomicBoolean();
+
+    // Hashing an attribute onto the curve takes a square root, policies reuse the same attributes
+    private final LinkedHashMap<String, Element> attributeHashes = new LinkedHashMap<>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Element> eldest) {
+            return size() > MAX_ATTRIBUTE_HASHES;
+        }
+    };
+
+    public PreparedPub(BswabePub pub) {
+        this.pairingDesc = pub.pairingDesc;
+        this.p = pub.p;
+        this.g = pub.g;
+        this.h = pub.h;
+        this.f = pub.f;
+        this.gp = pub.gp;
+        this.g_hat_alpha = pub.g_hat_alpha;
+
+        this.gPow = pub.g.pow();
+        this.hPow = pub.h.pow();
+        this.gpPow = pub.gp.pow();
+        this.gHatAlphaPow = pub.g_hat_alpha.pow();
+        this.fPow = pub.f == null ? null : pub.f.pow();
+
+        int bytes = gPow.toBytes().length + hPow.toBytes().length + gpPow.toBytes().length
+                + gHatAlphaPow.toBytes().length;
+        this.tableBytes = fPow == null ? bytes : bytes + fPow.toBytes().length;
+    }
+
+    /**
+     * @param pub Public key
+     * @return The key if it is already prepared, otherwise a prepared copy of it
+     */
+    public static PreparedPub of(BswabePub pub) {
+        return pub instanceof PreparedPub ? (PreparedPub) pub : new PreparedPub(pub);
+    }
+
+    /**
+     * Approximate heap used by the power tables, for cache accounting
+     *
+     * @return Size in bytes
+     */
+    public int tableBytes() {
+        return tableBytes;
+    }
+
+    /**
+     * Hashes an attribute onto G1 (equal to G2 for the curve used), as Bswabe does
+     *
+     * @param attr Attribute
+     * @return Element for the attribute, must be duplicated before being modified
+     * @throws NoSuchAlgorithmException
+     */
+    Element hashAttribute(String attr) throws NoSuchAlgorithmException {
+        synchronized (attributeHashes) {
+            Element hash = attributeHashes.get(attr);
+            if (hash != null) {
+                return hash;
+            }
+        }
+        byte[] digest = MessageDigest.getInstance("SHA-1").digest(attr.getBytes());
+        Element hash = p.getG1().newElement().setFromHash(digest, 0, digest.length);
+        synchronized (attributeHashes) {
+            attributeHashes.put(attr, hash);
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,191 @@
+package com.jws1g18.myphrplus;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.CollectionReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.ListenerRegistration;
+
+import org.slf4j.Logger;
+
+/**
+ * In memory cache of user documents. Each cached user has a Firestore snapshot
+ * listener, so changes made by any instance reach the cache as soon as Firestore
+ * sends them rather than after a TTL expires.
+ *
+ * Writes made by this instance are recorded with their commit time, a cached
+ * snapshot older than the last write to a user is not used, so a user always
+ * sees their own changes.
+ */
+public class UserCache {
+    // Each cached user holds a snapshot listener on the one Firestore client, which
+    // is meant to carry tens of listeners rather than hundreds. Requests are
+    // spread over instances, so this still covers the users active on one.
+    static final int MAX_USERS = 100;
+    static final long FIRST_SNAPSHOT_TIMEOUT_MS = 2000;
+
+    private final CollectionReference users;
+    private final Logger logger;
+
+    // Access ordered so iteration starts at the least recently used user
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public UserCache(Firestore db, Logger logger) {
+        this.users = db.collection("users");
+        this.logger = logger;
+    }
+
+    /**
+     * Gets a users document, listening for changes to it if it is not cached
+     * @param uid User ID
+     * @return Latest snapshot of the users document, which may not exist
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public DocumentSnapshot get(String uid) throws InterruptedException, ExecutionException {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(uid);
+            if (entry == null) {
+                entry = listen(uid);
+            }
+        }
+
+        DocumentSnapshot snapshot = entry.current();
+        if (snapshot == null && entry.awaitFirst()) {
+            snapshot = entry.current();
+        }
+        if (snapshot == null) {
+            // Listener is not ready or is behind one of our writes, read directly
+            snapshot = users.document(uid).get().get();
+            entry.offer(snapshot);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Records a write to a users document made by this instance
+     * @param uid User ID
+     * @param updateTime Commit time of the write
+     */
+    public void written(String uid, Timestamp updateTime) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(uid);
+        }
+        if (entry != null) {
+            entry.written(updateTime);
+        }
+    }
+
+    /**
+     * Removes a user from the cache, for use after a write whose commit time is not
+     * known such as a transaction. The next read of the user is a fresh read.
+     * @param uid User ID
+     */
+    public void invalidate(String uid) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(uid);
+        }
+        if (entry != null) {
+            remove(uid, entry);
+        }
+    }
+
+    /**
+     * Stops listening to every cached user
+     */
+    public void clear() {
+        synchronized (entries) {
+            for (Entry entry : entries.values()) {
+                entry.registration.remove();
+            }
+            entries.clear();
+        }
+    }
+
+    private Entry listen(String uid) {
+        final Entry entry = new Entry();
+        entries.put(uid, entry);
+        entry.registration = users.document(uid).addSnapshotListener((snapshot, error) -> {
+            if (error != null) {
+                logger.error("User listener for " + uid + " failed", error);
+                remove(uid, entry);
+                return;
+            }
+            entry.offer(snapshot);
+        });
+
+        // Stop listening to least recently used users
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > MAX_USERS && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            eldest.getValue().registration.remove();
+            eldest.getValue().firstSnapshot.countDown();
+            it.remove();
+        }
+        return entry;
+    }
+
+    private void remove(String uid, Entry entry) {
+        synchronized (entries) {
+            if (entries.get(uid) == entry) {
+                entries.remove(uid);
+            }
+        }
+        if (entry.registration != null) {
+            entry.registration.remove();
+        }
+        // Wake up any readers so they fall back to a direct read
+        entry.firstSnapshot.countDown();
+    }
+
+    private static class Entry {
+        final CountDownLatch firstSnapshot = new CountDownLatch(1);
+        ListenerRegistration registration;
+        private DocumentSnapshot snapshot;
+        private Timestamp minReadTime;
+
+        /**
+         * @return The cached snapshot, or null if there is none or it is older than
+         * the last write made by this instance
+         */
+        synchronized DocumentSnapshot current() {
+            if (snapshot == null) {
+                return null;
+            }
+            if (minReadTime != null && snapshot.getReadTime().compareTo(minReadTime) < 0) {
+                return null;
+            }
+            return snapshot;
+        }
+
+        /**
+         * Replaces the cached snapshot if the given one is newer
+         */
+        synchronized void offer(DocumentSnapshot newSnapshot) {
+            if (snapshot == null || newSnapshot.getReadTime().compareTo(snapshot.getReadTime()) > 0) {
+                snapshot = newSnapshot;
+            }
+            firstSnapshot.countDown();
+        }
+
+        synchronized void written(Timestamp updateTime) {
+            if (minReadTime == null || updateTime.compareTo(minReadTime) > 0) {
+                minReadTime = updateTime;
+            }
+        }
+
+        boolean awaitFirst() throws InterruptedException {
+            return firstSnapshot.await(FIRST_SNAPSHOT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+}
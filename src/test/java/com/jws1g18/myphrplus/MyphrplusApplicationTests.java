@@ -6,33 +6,60 @@ import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assertions.fail;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
 
 import com.google.api.gax.rpc.FailedPreconditionException;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
 import com.google.cloud.firestore.QuerySnapshot;
 import com.google.cloud.firestore.WriteResult;
 import com.google.firebase.auth.FirebaseAuthException;
 import com.google.firebase.auth.UserRecord;
+import com.jws1g18.myphrplus.DTOS.User;
 
 import org.apache.commons.lang3.RandomStringUtils;
+import org.apache.commons.lang3.SerializationUtils;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.Test;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.core.io.ByteArrayResource;
 
+import co.junwei.bswabe.Bswabe;
+import co.junwei.bswabe.BswabeCph;
+import co.junwei.bswabe.BswabeCphKey;
+import co.junwei.bswabe.BswabeElementBoolean;
 import co.junwei.bswabe.BswabeMsk;
 import co.junwei.bswabe.BswabePrv;
 import co.junwei.bswabe.BswabePub;
+import co.junwei.bswabe.SerializeUtils;
+import it.unisa.dia.gas.jpbc.Element;
 
 class MyphrplusApplicationTests {
 
@@ -135,6 +162,667 @@ class MyphrplusApplicationTests {
 		logger.info("===ABE TESTS PASSED===\n");
 	}
 
+	@Test
+	void abeStreamTests() {
+		logger.info("===ABE STREAM TESTS===");
+		Object[] setup = ABE.setup();
+		BswabePub pub = (BswabePub) setup[0];
+		BswabeMsk msk = (BswabeMsk) setup[1];
+		BswabePrv prv1 = ABE.genPrivKey(pub, msk, new String[] {"Foo", "Bar"});
+		BswabePrv prv2 = ABE.genPrivKey(pub, msk, new String[] {"Baz", "Qux"});
+
+		logger.info("Encrypt stream");
+		ByteArrayOutputStream encOut = new ByteArrayOutputStream();
+		assertTrue(ABE.encrypt(pub, "Foo Bar 2of2", new ByteArrayInputStream(testImg), encOut), "Error occured while encrypting stream");
+		assertFalse(ABE.encrypt(pub, "Baz Quz 2of1", new ByteArrayInputStream(testImg), new ByteArrayOutputStream()), "Stream was encrypted by invalid policy");
+		byte[] encFile = encOut.toByteArray();
+
+		logger.info("Decrypt stream");
+		ByteArrayOutputStream decOut = new ByteArrayOutputStream();
+		assertTrue(ABE.decrypt(pub, prv1, new ByteArrayInputStream(encFile), decOut), "Error occured while decrypting stream");
+		assertArrayEquals(testImg, decOut.toByteArray(), "Stream was not decrypted correctly");
+		assertFalse(ABE.decrypt(pub, prv2, new ByteArrayInputStream(encFile), new ByteArrayOutputStream()), "Private key with incorrect attributes was able to decrypt stream");
+
+		logger.info("Tampered and truncated streams");
+		byte[] tampered = encFile.clone();
+		tampered[tampered.length - 20] ^= 1;
+		assertFalse(ABE.decrypt(pub, prv1, new ByteArrayInputStream(tampered), new ByteArrayOutputStream()), "Tampered stream was decrypted");
+		byte[] truncated = Arrays.copyOf(encFile, encFile.length - ChunkedAES.ENC_CHUNK_SIZE / 2);
+		assertFalse(ABE.decrypt(pub, prv1, new ByteArrayInputStream(truncated), new ByteArrayOutputStream()), "Truncated stream was decrypted");
+
+		logger.info("===ABE STREAM TESTS PASSED===\n");
+	}
+
+	@Test
+	void cpabeTests() throws Exception {
+		logger.info("===CPABE TESTS===");
+		Object[] setup = ABE.setup();
+		PreparedPub pub = PreparedPub.of((BswabePub) setup[0]);
+		BswabeMsk msk = (BswabeMsk) setup[1];
+		BswabePrv prv = Bswabe.keygen(pub, msk, new String[] {"Foo", "Bar", "Baz"});
+		String policy = "Foo Bar 2of2 Qux 1of2";
+
+		logger.info("Ciphertexts are read and decrypted by Bswabe");
+		Cpabe.CphKey cphKey = Cpabe.enc(pub, policy, null);
+		assertNotNull(cphKey, "Could not encrypt");
+		BswabeCph cph = SerializeUtils.bswabeCphUnserialize(pub, cphKey.cph);
+		assertArrayEquals(cphKey.cph, SerializeUtils.bswabeCphSerialize(cph), "Ciphertext does not round trip through SerializeUtils");
+		BswabeElementBoolean dec = Bswabe.dec(pub, prv, cph);
+		assertTrue(dec.b, "Bswabe could not decrypt ciphertext");
+		assertTrue(cphKey.key.isEqual(dec.e), "Bswabe recovered a different key");
+
+		logger.info("Bswabe ciphertexts are decrypted");
+		BswabeCphKey bswabeCph = Bswabe.enc(pub, policy);
+		Element key = Cpabe.dec(pub, prv, SerializeUtils.bswabeCphSerialize(bswabeCph.cph), null);
+		assertNotNull(key, "Could not decrypt Bswabe ciphertext");
+		assertTrue(bswabeCph.key.isEqual(key), "Different key recovered from Bswabe ciphertext");
+		BswabePrv other = Bswabe.keygen(pub, msk, new String[] {"Foo", "Baz"});
+		assertNull(Cpabe.dec(pub, other, SerializeUtils.bswabeCphSerialize(bswabeCph.cph), null), "Key without the attributes decrypted");
+
+		logger.info("Keys are used by Bswabe");
+		BswabePrv[] keys = { Cpabe.keygen(pub, msk, new String[] {"Foo", "Bar"}), Cpabe.delegate(pub, prv, new String[] {"Foo", "Bar"}) };
+		for (BswabePrv generated : keys) {
+			BswabeCphKey enc = Bswabe.enc(pub, policy);
+			BswabeElementBoolean res = Bswabe.dec(pub, generated, enc.cph);
+			assertTrue(res.b, "Bswabe could not decrypt with generated key");
+			assertTrue(enc.key.isEqual(res.e), "Bswabe recovered a different key with generated key");
+		}
+		BswabePrv delegated = Cpabe.delegate(pub, prv, new String[] {"Foo"});
+		assertFalse(Bswabe.dec(pub, delegated, Bswabe.enc(pub, policy).cph).b, "Delegated key without the attributes decrypted");
+		assertThrows(IllegalArgumentException.class, () -> Cpabe.delegate(pub, prv, new String[] {"Qux"}), "Delegated an attribute not in the key");
+
+		logger.info("Invalid policies");
+		for (String invalid : new String[] {"a 1of1", "a b", "a b 3of2", "a 0of1", "a b 2of3"}) {
+			assertNull(Cpabe.enc(pub, invalid, null), "Invalid policy " + invalid + " was encrypted");
+		}
+
+		logger.info("===CPABE TESTS PASSED===\n");
+	}
+
+	@Test
+	void cpabeParallelTests() throws Exception {
+		logger.info("===CPABE PARALLEL TESTS===");
+		Object[] setup = ABE.setup();
+		PreparedPub pub = PreparedPub.of((BswabePub) setup[0]);
+		BswabeMsk msk = (BswabeMsk) setup[1];
+		StringBuilder policy = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			policy.append("uid_").append(i).append(' ');
+		}
+		policy.append("1of50");
+		BswabePrv[] keys = { Bswabe.keygen(pub, msk, new String[] {"uid_0"}), Bswabe.keygen(pub, msk, new String[] {"uid_49"}) };
+
+		logger.info("Encrypt a wide policy from several threads at once");
+		ForkJoinPool pool = new ForkJoinPool(4);
+		ExecutorService callers = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<Cpabe.CphKey>> futures = new ArrayList<>();
+			for (int i = 0; i < 8; i++) {
+				futures.add(callers.submit(() -> Cpabe.enc(pub, policy.toString(), pool)));
+			}
+			for (Future<Cpabe.CphKey> future : futures) {
+				Cpabe.CphKey cphKey = future.get();
+				assertNotNull(cphKey, "Could not encrypt wide policy");
+				for (BswabePrv prv : keys) {
+					BswabeElementBoolean dec = Bswabe.dec(pub, prv, SerializeUtils.bswabeCphUnserialize(pub, cphKey.cph));
+					assertTrue(dec.b, "Bswabe could not decrypt ciphertext made in parallel");
+					assertTrue(cphKey.key.isEqual(dec.e), "Bswabe recovered a different key from ciphertext made in parallel");
+				}
+				assertTrue(cphKey.key.isEqual(Cpabe.dec(pub, keys[1], cphKey.cph, pool)), "Different key recovered with a pool");
+			}
+		} finally {
+			callers.shutdown();
+			pool.shutdown();
+		}
+
+		logger.info("===CPABE PARALLEL TESTS PASSED===\n");
+	}
+
+	@Test
+	void cpabeThresholdTests() throws Exception {
+		logger.info("===CPABE THRESHOLD TESTS===");
+		Object[] setup = ABE.setup();
+		PreparedPub pub = PreparedPub.of((BswabePub) setup[0]);
+		BswabeMsk msk = (BswabeMsk) setup[1];
+		String[] policies = { "a b c 2of3 d 1of2", "a b 2of2 c d 2of2 2of2", "a b c 2of3 d e 2of2 1of2" };
+		String[][] attrs = { {"a", "c"}, {"d"}, {"a"}, {"b", "e"}, {"a", "b", "c", "d"}, {"a", "b", "c"}, {"d", "e"}, {"b", "c", "e"} };
+		// Whether each key satisfies each policy
+		boolean[][] satisfies = {
+			{true, true, false, false, true, true, true, true},
+			{false, false, false, false, true, false, false, false},
+			{true, false, false, false, true, true, true, true}
+		};
+		BswabePrv[] keys = new BswabePrv[attrs.length];
+		for (int i = 0; i < attrs.length; i++) {
+			keys[i] = Cpabe.keygen(pub, msk, attrs[i]);
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(4);
+		try {
+			for (int p = 0; p < policies.length; p++) {
+				logger.info("Policy: " + policies[p]);
+				BswabeCphKey bswabeCph = Bswabe.enc(pub, policies[p]);
+				byte[] bswabeBuf = SerializeUtils.bswabeCphSerialize(bswabeCph.cph);
+				Cpabe.CphKey cphKey = Cpabe.enc(pub, policies[p], pool);
+				for (int k = 0; k < keys.length; k++) {
+					String name = String.join(",", attrs[k]);
+					for (ForkJoinPool decPool : new ForkJoinPool[] {null, pool}) {
+						Element fromBswabe = Cpabe.dec(pub, keys[k], bswabeBuf, decPool);
+						Element fromCpabe = Cpabe.dec(pub, keys[k], cphKey.cph, decPool);
+						if (satisfies[p][k]) {
+							assertNotNull(fromBswabe, "Key " + name + " could not decrypt");
+							assertTrue(bswabeCph.key.isEqual(fromBswabe), "Key " + name + " recovered a different key");
+							assertNotNull(fromCpabe, "Key " + name + " could not decrypt");
+							assertTrue(cphKey.key.isEqual(fromCpabe), "Key " + name + " recovered a different key");
+						} else {
+							assertNull(fromBswabe, "Key " + name + " decrypted without satisfying the policy");
+							assertNull(fromCpabe, "Key " + name + " decrypted without satisfying the policy");
+						}
+					}
+					assertEquals(satisfies[p][k], Bswabe.dec(pub, keys[k], SerializeUtils.bswabeCphUnserialize(pub, bswabeBuf)).b,
+							"Bswabe disagrees on key " + name);
+				}
+			}
+		} finally {
+			pool.shutdown();
+		}
+
+		logger.info("===CPABE THRESHOLD TESTS PASSED===\n");
+	}
+
+	@Test
+	void offlineEncPoolTests() throws Exception {
+		logger.info("===OFFLINE ENC POOL TESTS===");
+		Object[] setup = ABE.setup();
+		PreparedPub pub = PreparedPub.of((BswabePub) setup[0]);
+		BswabeMsk msk = (BswabeMsk) setup[1];
+		AtomicBoolean otherWork = new AtomicBoolean(true);
+		OfflineEncPool pool = new OfflineEncPool(4, otherWork::get);
+		try {
+			logger.info("Nothing is made while the server is busy");
+			assertNull(pool.take(pub), "Entry taken from an empty pool");
+			pool.done();
+			Thread.sleep(3 * OfflineEncPool.IDLE_CHECK_MS);
+			assertTrue(pub.offline.isEmpty(), "Entries were made while other work was running");
+			otherWork.set(false);
+			assertNull(pool.take(pub), "Entry taken from an empty pool");
+			Thread.sleep(3 * OfflineEncPool.IDLE_CHECK_MS);
+			assertTrue(pub.offline.isEmpty(), "Entries were made while an encryption was in flight");
+			pool.done();
+			for (int i = 0; i < 100 && pub.offline.size() < 4; i++) {
+				Thread.sleep(50);
+			}
+			assertEquals(4, pub.offline.size(), "Pool was not filled once idle");
+
+			logger.info("Entries are only used once");
+			List<Cpabe.Offline> taken = new ArrayList<>();
+			for (int i = 0; i < 4; i++) {
+				Cpabe.Offline offline = pool.take(pub);
+				assertNotNull(offline, "Filled pool was empty");
+				for (Cpabe.Offline other : taken) {
+					assertTrue(offline != other && !offline.s.isEqual(other.s), "Entry was taken twice");
+				}
+				taken.add(offline);
+			}
+
+			logger.info("Leaves under OR nodes use the offline part");
+			String policy = "a b 1of2 c d 2of2 1of2";
+			BswabePrv[] satisfying = { Cpabe.keygen(pub, msk, new String[] {"a"}), Cpabe.keygen(pub, msk, new String[] {"c", "d"}) };
+			BswabePrv other = Cpabe.keygen(pub, msk, new String[] {"c"});
+			for (Cpabe.Offline offline : taken.subList(0, 2)) {
+				Cpabe.CphKey cphKey = Cpabe.enc(pub, policy, null, offline);
+				assertTrue(offline.m.isEqual(cphKey.key), "Offline key was not used");
+				for (BswabePrv prv : satisfying) {
+					BswabeElementBoolean dec = Bswabe.dec(pub, prv, SerializeUtils.bswabeCphUnserialize(pub, cphKey.cph));
+					assertTrue(dec.b, "Bswabe could not decrypt ciphertext made with an offline part");
+					assertTrue(cphKey.key.isEqual(dec.e), "Bswabe recovered a different key");
+				}
+				assertNull(Cpabe.dec(pub, other, cphKey.cph, null), "Key without the attributes decrypted");
+			}
+			Cpabe.CphKey single = Cpabe.enc(pub, "a", null, taken.get(2));
+			assertTrue(single.key.isEqual(Cpabe.dec(pub, satisfying[0], single.cph, null)), "Single leaf policy made with an offline part differs");
+			for (int i = 0; i < 4; i++) {
+				pool.done();
+			}
+		} finally {
+			pool.close();
+		}
+
+		logger.info("===OFFLINE ENC POOL TESTS PASSED===\n");
+	}
+
+	@Test
+	void encFileHeaderTests() throws IOException {
+		logger.info("===ENC FILE HEADER TESTS===");
+		byte[] cph = RandomStringUtils.randomAlphanumeric(3000).getBytes();
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		new EncFileHeader(cph).write(out);
+		out.write(new byte[] {1, 2, 3});
+		byte[] container = out.toByteArray();
+
+		logger.info("Read from a stream and a buffer");
+		ByteArrayInputStream in = new ByteArrayInputStream(container);
+		EncFileHeader header = EncFileHeader.read(in);
+		assertArrayEquals(cph, header.getCphBuf(), "Ciphertext read from stream differs");
+		assertEquals(container.length - 3, header.length(), "Header length is wrong");
+		assertEquals(1, in.read(), "Stream not left at the payload");
+		ByteBuffer buf = ByteBuffer.wrap(container);
+		assertArrayEquals(cph, EncFileHeader.read(buf).getCphBuf(), "Ciphertext read from buffer differs");
+		assertEquals(container.length - 3, buf.position(), "Buffer not left at the payload");
+
+		logger.info("Legacy detection");
+		assertTrue(EncFileHeader.isContainer(container), "Container not detected");
+		byte[] legacy = SerializationUtils.serialize(new EncFile(new byte[] {1, 2, 3}, cph));
+		assertFalse(EncFileHeader.isContainer(legacy), "Legacy file detected as a container");
+		assertFalse(EncFileHeader.isContainer(new byte[] {'M', 'P'}), "Short prefix detected as a container");
+
+		logger.info("Corrupt headers are rejected before allocating");
+		byte[] huge = container.clone();
+		ByteBuffer.wrap(huge).putInt(EncFileHeader.PREFIX_LENGTH - 4, Integer.MAX_VALUE);
+		assertThrows(IOException.class, () -> EncFileHeader.read(new ByteArrayInputStream(huge)), "Huge header length was read");
+		assertThrows(IOException.class, () -> EncFileHeader.read(ByteBuffer.wrap(huge)), "Huge header length was read from buffer");
+		byte[] negative = container.clone();
+		ByteBuffer.wrap(negative).putInt(EncFileHeader.PREFIX_LENGTH - 4, -1);
+		assertThrows(IOException.class, () -> EncFileHeader.read(new ByteArrayInputStream(negative)), "Negative header length was read");
+		byte[] truncated = Arrays.copyOf(container, 100);
+		assertThrows(IOException.class, () -> EncFileHeader.read(new ByteArrayInputStream(truncated)), "Truncated header was read");
+		assertThrows(IOException.class, () -> EncFileHeader.read(ByteBuffer.wrap(truncated)), "Truncated header was read from buffer");
+		assertThrows(IOException.class, () -> EncFileHeader.read(new ByteArrayInputStream(legacy)), "Legacy file read as a container");
+		assertThrows(IOException.class, () -> new EncFileHeader(new byte[EncFileHeader.MAX_CPH_LENGTH + 1]).write(new ByteArrayOutputStream()),
+				"Oversized header was written");
+
+		logger.info("===ENC FILE HEADER TESTS PASSED===\n");
+	}
+
+	@Test
+	void fileLogWriterTests() throws IOException, InterruptedException, ExecutionException {
+		logger.info("===FILE LOG WRITER TESTS===");
+		Firestore db = firebaseInterface.getDB();
+		Path dir = Files.createTempDirectory("file-log-test");
+		Path spillFile = dir.resolve("file-logs.jsonl");
+		String fileRef = "TEST-" + RandomStringUtils.randomAlphabetic(20);
+		Timestamp time = Timestamp.ofTimeMicroseconds(1600000000123456L);
+		Map<String, Object> data = new HashMap<>();
+		data.put("uid", "testUser");
+		data.put("type", "download");
+		data.put("timestamp", time);
+
+		logger.info("Logs written after close are spilled");
+		FileLogWriter writer = new FileLogWriter(db, logger, spillFile);
+		writer.close();
+		writer.log(fileRef, data);
+		writer.log(fileRef, data);
+		assertEquals(2, Files.readAllLines(spillFile).size(), "Logs were not spilled");
+
+		logger.info("Spilled logs are replayed on start");
+		writer = new FileLogWriter(db, logger, spillFile);
+		Path replayFile = dir.resolve("file-logs.jsonl.replay");
+		for (int i = 0; i < 60 && (Files.exists(spillFile) || Files.exists(replayFile)); i++) {
+			Thread.sleep(500);
+		}
+		writer.close();
+		assertFalse(Files.exists(spillFile) || Files.exists(replayFile), "Spilled logs were not replayed");
+		List<QueryDocumentSnapshot> logs = db.collection("files").document(fileRef).collection("logs").get().get().getDocuments();
+		assertEquals(2, logs.size(), "Replayed logs were not written");
+		for (QueryDocumentSnapshot log : logs) {
+			assertEquals("download", log.getString("type"), "Replayed log data differs");
+			assertEquals(time, log.getTimestamp("timestamp"), "Replayed log timestamp differs");
+			log.getReference().delete().get();
+		}
+		Files.deleteIfExists(dir);
+
+		logger.info("===FILE LOG WRITER TESTS PASSED===\n");
+	}
+
+	@Test
+	void fileRefCountTests() throws InterruptedException, ExecutionException {
+		logger.info("===FILE REF COUNT TESTS===");
+		Firestore db = firebaseInterface.getDB();
+		String uid1 = "TEST-" + RandomStringUtils.randomAlphabetic(20);
+		String uid2 = "TEST-" + RandomStringUtils.randomAlphabetic(20);
+		for (String uid : List.of(uid1, uid2)) {
+			Map<String, Object> data = new HashMap<>();
+			data.put("name", "test");
+			data.put("role", "testUser");
+			data.put("files", new ArrayList<String>());
+			firebaseInterface.addUser(data, uid);
+		}
+		Map<String, Object> file = new HashMap<>();
+		file.put("filepath", "test/refCount");
+
+		logger.info("Shared file is only deleted by its last user");
+		FunctionResponse addRes = firebaseInterface.addFileAndShare(file, List.of(uid1, uid2));
+		assertTrue(addRes.successful(), "File could not be added");
+		String fileRef = addRes.getMessage();
+		assertEquals(2L, db.collection("files").document(fileRef).get().get().getLong("refCount"), "File not counted");
+		FunctionResponse deleteRes = firebaseInterface.deleteFile(uid1, fileRef);
+		assertTrue(deleteRes.successful(), "File could not be removed from first user");
+		assertEquals("No delete needed", deleteRes.getMessage(), "File deleted while still shared");
+		assertEquals(1L, db.collection("files").document(fileRef).get().get().getLong("refCount"), "Count not updated");
+		deleteRes = firebaseInterface.deleteFile(uid2, fileRef);
+		assertTrue(deleteRes.successful(), "File could not be removed from last user");
+		assertEquals("test/refCount", deleteRes.getMessage(), "File not deleted by last user");
+		assertFalse(db.collection("files").document(fileRef).get().get().exists(), "File document not deleted");
+
+		logger.info("Legacy file without a count is only deleted by its last user");
+		String legacyRef = db.collection("files").add(file).get().getId();
+		firebaseInterface.updateArray(uid1, "files", legacyRef);
+		firebaseInterface.updateArray(uid2, "files", legacyRef);
+		deleteRes = firebaseInterface.deleteFile(uid1, legacyRef);
+		assertTrue(deleteRes.successful(), "Legacy file could not be removed from first user");
+		assertEquals("No delete needed", deleteRes.getMessage(), "Legacy file deleted while still shared");
+		assertEquals(1L, db.collection("files").document(legacyRef).get().get().getLong("refCount"), "Legacy file not counted");
+		deleteRes = firebaseInterface.deleteFile(uid2, legacyRef);
+		assertTrue(deleteRes.successful(), "Legacy file could not be removed from last user");
+		assertEquals("test/refCount", deleteRes.getMessage(), "Legacy file not deleted by last user");
+		assertFalse(db.collection("files").document(legacyRef).get().get().exists(), "Legacy file document not deleted");
+
+		firebaseInterface.deleteUserFirestore(uid1);
+		firebaseInterface.deleteUserFirestore(uid2);
+		logger.info("===FILE REF COUNT TESTS PASSED===\n");
+	}
+
+	@Test
+	void nhsIndexTests() throws InterruptedException, ExecutionException {
+		logger.info("===NHS INDEX TESTS===");
+		String dpUid = "TEST-" + RandomStringUtils.randomAlphabetic(20);
+		String drUid = "TEST-" + RandomStringUtils.randomAlphabetic(20);
+		String uid1 = "TEST-" + RandomStringUtils.randomAlphabetic(20);
+		String uid2 = "TEST-" + RandomStringUtils.randomAlphabetic(20);
+		String nhsNum = RandomStringUtils.randomNumeric(10);
+		Map<String, Object> dp = new HashMap<>();
+		dp.put("role", "DP");
+		dp.put("bucketName", "test-bucket-myphrplus-backend");
+		dp.put("dataRequesters", new ArrayList<>(List.of(drUid)));
+		firebaseInterface.addUser(dp, dpUid);
+		Map<String, Object> dr = new HashMap<>();
+		dr.put("role", "DR");
+		dr.put("bucketName", "test-bucket-myphrplus-backend");
+		dr.put("patients", new ArrayList<String>());
+		firebaseInterface.addUser(dr, drUid);
+		User patient = new User();
+		patient.name = "test";
+		patient.email = "test@test.com";
+		patient.nhsnum = nhsNum;
+		patient.parent = dpUid;
+
+		logger.info("Registering a patient indexes their NHS number");
+		FunctionResponse addRes = firebaseInterface.addPatient(uid1, patient, new ArrayList<>(List.of("Patient")));
+		assertTrue(addRes.successful(), "Patient could not be added");
+		DocumentSnapshot index = firebaseInterface.nhsIndex(nhsNum).get().get();
+		assertTrue(index.exists(), "NHS number not indexed");
+		assertEquals(uid1, index.getString("uid"), "NHS number indexed to wrong user");
+		assertEquals(drUid, index.getString("parent"), "NHS number indexed with wrong parent");
+		assertFalse(firebaseInterface.checkNHSnum(nhsNum), "Registered NHS number reported as available");
+
+		logger.info("NHS number cannot be registered twice");
+		addRes = firebaseInterface.addPatient(uid2, patient, new ArrayList<>(List.of("Patient")));
+		assertFalse(addRes.successful(), "Patient added with registered NHS number");
+		assertEquals("NHS Number has already been registered", addRes.getMessage(), "Wrong reason for rejection");
+		assertFalse(firebaseInterface.getDB().collection("users").document(uid2).get().get().exists(), "Rejected patient was written");
+		assertEquals(uid1, firebaseInterface.nhsIndex(nhsNum).get().get().getString("uid"), "NHS number index overwritten");
+
+		firebaseInterface.nhsIndex(nhsNum).delete().get();
+		for (String uid : List.of(uid1, dpUid, drUid)) {
+			firebaseInterface.deleteUserFirestore(uid);
+		}
+		logger.info("===NHS INDEX TESTS PASSED===\n");
+	}
+
+	@Test
+	void attributeIndexTests() {
+		logger.info("===ATTRIBUTE INDEX TESTS===");
+		AttributeIndex.Bucket bucket = new AttributeIndex(null, logger).new Bucket("test");
+		Timestamp t1 = Timestamp.ofTimeMicroseconds(1000);
+		Timestamp t2 = Timestamp.ofTimeMicroseconds(2000);
+		Timestamp t3 = Timestamp.ofTimeMicroseconds(3000);
+
+		logger.info("Find users by attributes");
+		bucket.apply("a", Arrays.asList("Foo", "Bar"), t1);
+		bucket.apply("b", Arrays.asList("Foo"), t1);
+		assertEquals(Set.of("a", "b"), bucket.find(List.of("Foo")), "Users with attribute not found");
+		assertEquals(Set.of("a"), bucket.find(List.of("Foo", "Bar")), "Users with every attribute not found");
+		assertTrue(bucket.find(List.of("Baz")).isEmpty(), "Users found for unknown attribute");
+
+		logger.info("Later changes replace earlier ones");
+		bucket.apply("a", Arrays.asList("Baz"), t2);
+		assertEquals(Set.of("b"), bucket.find(List.of("Foo")), "Removed attribute still indexed");
+		assertEquals(Set.of("a"), bucket.find(List.of("Baz")), "Added attribute not indexed");
+
+		logger.info("Older and repeated changes are ignored");
+		bucket.apply("a", Arrays.asList("Foo", "Bar"), t1);
+		bucket.apply("a", Arrays.asList("Qux"), t2);
+		assertEquals(Set.of("a"), bucket.find(List.of("Baz")), "Older change was applied");
+		assertTrue(bucket.find(List.of("Qux")).isEmpty(), "Change with the same time was applied");
+
+		logger.info("Deleted users are not added back by older changes");
+		bucket.apply("b", null, t3);
+		bucket.apply("b", Arrays.asList("Foo"), t2);
+		bucket.apply("c", null, t1);
+		assertTrue(bucket.find(List.of("Foo")).isEmpty(), "Deleted user was added back");
+		assertEquals(Set.of("a"), bucket.find(List.of()), "Deleted users found without attributes");
+
+		logger.info("===ATTRIBUTE INDEX TESTS PASSED===\n");
+	}
+
+	@Test
+	void encFileReaderTests() throws IOException {
+		logger.info("===ENC FILE READER TESTS===");
+		Object[] setup = ABE.setup();
+		BswabePub pub = (BswabePub) setup[0];
+		BswabeMsk msk = (BswabeMsk) setup[1];
+		BswabePrv prv1 = ABE.genPrivKey(pub, msk, new String[] {"Foo", "Bar"});
+		BswabePrv prv2 = ABE.genPrivKey(pub, msk, new String[] {"Baz", "Qux"});
+		int chunk = ChunkedAES.CHUNK_SIZE;
+		byte[] plain = RandomStringUtils.randomAlphanumeric(3 * chunk + 1000).getBytes();
+		ByteArrayOutputStream encOut = new ByteArrayOutputStream();
+		assertTrue(ABE.encrypt(pub, "Foo Bar 2of2", new ByteArrayInputStream(plain), encOut), "Error occured while encrypting stream");
+		byte[] enc = encOut.toByteArray();
+		BlobStore store = new InMemoryBlobStore();
+		store.createBucket("test");
+		store.put("test", "file", "application/octet-stream", enc);
+		BlobStore.StoredObject object = store.stat("test", "file");
+
+		logger.info("Read ranges from the store and from a buffer");
+		long[][] ranges = {
+			{0, plain.length}, {0, 10}, {chunk - 10, 20}, {chunk, chunk}, {chunk + 5, 2 * chunk},
+			{3 * chunk, 1000}, {plain.length - 1500, 1500}, {plain.length - 1, 1}
+		};
+		for (long[] range : ranges) {
+			byte[] expected = Arrays.copyOfRange(plain, (int) range[0], (int) (range[0] + range[1]));
+			try (EncFileReader reader = EncFileReader.open(store.open(object), object.size)) {
+				assertTrue(reader.unlock(pub, prv1), "Could not unlock file from store");
+				assertTrue(reader.isSeekable(), "Container was not seekable");
+				assertEquals(plain.length, reader.length(), "Plaintext length is wrong");
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				reader.write(range[0], range[1], out);
+				assertArrayEquals(expected, out.toByteArray(), "Range " + range[0] + "+" + range[1] + " from store differs");
+			}
+			try (EncFileReader reader = EncFileReader.open(ByteBuffer.wrap(enc))) {
+				assertTrue(reader.unlock(pub, prv1), "Could not unlock file from buffer");
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				reader.write(range[0], range[1], out);
+				assertArrayEquals(expected, out.toByteArray(), "Range " + range[0] + "+" + range[1] + " from buffer differs");
+			}
+		}
+
+		logger.info("Read several ranges with one reader");
+		try (EncFileReader reader = EncFileReader.open(store.open(object), object.size)) {
+			assertTrue(reader.unlock(pub, prv1), "Could not unlock file from store");
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			reader.write(2 * chunk - 100, 200, out);
+			reader.write(0, 100, out);
+			reader.write(plain.length - 100, 100, out);
+			ByteArrayOutputStream expected = new ByteArrayOutputStream();
+			expected.write(plain, 2 * chunk - 100, 200);
+			expected.write(plain, 0, 100);
+			expected.write(plain, plain.length - 100, 100);
+			assertArrayEquals(expected.toByteArray(), out.toByteArray(), "Ranges read with one reader differ");
+		}
+
+		logger.info("Wrong key and tampered chunks");
+		try (EncFileReader reader = EncFileReader.open(ByteBuffer.wrap(enc))) {
+			assertFalse(reader.unlock(pub, prv2), "Private key with incorrect attributes unlocked file");
+		}
+		byte[] tampered = enc.clone();
+		tampered[tampered.length - 20] ^= 1;
+		try (EncFileReader reader = EncFileReader.open(ByteBuffer.wrap(tampered))) {
+			assertTrue(reader.unlock(pub, prv1), "Could not unlock tampered file");
+			reader.write(0, 100, new ByteArrayOutputStream());
+			assertThrows(IOException.class, () -> reader.write(plain.length - 100, 100, new ByteArrayOutputStream()),
+					"Tampered last chunk was read");
+		}
+
+		logger.info("===ENC FILE READER TESTS PASSED===\n");
+	}
+
+	@Test
+	void blobCacheTests() throws IOException, InterruptedException {
+		logger.info("===BLOB CACHE TESTS===");
+		Path dir = Files.createTempDirectory("blob-cache-test");
+		BlobCache cache = new BlobCache(dir, 8000, logger);
+		byte[][] objects = new byte[9][];
+		for (int i = 0; i < objects.length; i++) {
+			objects[i] = RandomStringUtils.randomAlphanumeric(1000).getBytes();
+		}
+
+		logger.info("Fill and get");
+		for (int i = 0; i < 8; i++) {
+			byte[] data = objects[i];
+			cache.fill("bucket", "object" + i, 1, data.length, out -> out.write(ByteBuffer.wrap(data)));
+		}
+		for (int i = 0; i < 100 && (long) cache.stats().get("fills") < 8; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(8000L, cache.stats().get("bytes"), "Objects were not cached");
+		for (int i = 0; i < 8; i++) {
+			ByteBuffer buf = cache.get("bucket", "object" + i, 1);
+			assertNotNull(buf, "Cached object was not found");
+			byte[] read = new byte[buf.remaining()];
+			buf.get(read);
+			assertArrayEquals(objects[i], read, "Cached object differs");
+		}
+
+		logger.info("Least recently used objects are evicted");
+		cache.get("bucket", "object0", 1);
+		byte[] extra = objects[8];
+		cache.fill("bucket", "object8", 1, extra.length, out -> out.write(ByteBuffer.wrap(extra)));
+		for (int i = 0; i < 100 && (long) cache.stats().get("fills") < 9; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(1L, cache.stats().get("evictions"), "Object was not evicted");
+		assertNull(cache.get("bucket", "object1", 1), "Least recently used object was not evicted");
+		assertNotNull(cache.get("bucket", "object0", 1), "Recently used object was evicted");
+		assertNotNull(cache.get("bucket", "object8", 1), "New object was not cached");
+
+		logger.info("Generations are cached separately");
+		assertNull(cache.get("bucket", "object0", 2), "Object was found under another generation");
+		cache.fill("bucket", "object0", 2, extra.length, out -> out.write(ByteBuffer.wrap(extra)));
+		// Too large and short objects are not cached
+		cache.fill("bucket", "large", 1, 2000, out -> out.write(ByteBuffer.wrap(new byte[2000])));
+		cache.fill("bucket", "short", 1, 1000, out -> out.write(ByteBuffer.wrap(new byte[500])));
+		for (int i = 0; i < 100 && (long) cache.stats().get("fills") + (long) cache.stats().get("fillFailures") < 11; i++) {
+			Thread.sleep(20);
+		}
+		ByteBuffer buf = cache.get("bucket", "object0", 2);
+		assertNotNull(buf, "New generation was not cached");
+		byte[] read = new byte[buf.remaining()];
+		buf.get(read);
+		assertArrayEquals(extra, read, "New generation differs");
+		assertNull(cache.get("bucket", "large", 1), "Object too large for the cache was cached");
+		assertNull(cache.get("bucket", "short", 1), "Object shorter than its size was cached");
+		assertEquals(1L, cache.stats().get("fillFailures"), "Short object did not fail");
+
+		logger.info("Remove every generation");
+		cache.remove("bucket", "object0");
+		assertNull(cache.get("bucket", "object0", 1), "Removed object was found");
+		assertNull(cache.get("bucket", "object0", 2), "Removed generation was found");
+
+		logger.info("Cached objects are kept across restarts");
+		cache.close();
+		cache = new BlobCache(dir, 8000, logger);
+		assertNotNull(cache.get("bucket", "object8", 1), "Cached object was not kept");
+		assertNull(cache.get("bucket", "object0", 1), "Removed object came back");
+		cache.close();
+
+		logger.info("===BLOB CACHE TESTS PASSED===\n");
+	}
+
+	@Test
+	void blobStoreTests() throws IOException {
+		logger.info("===BLOB STORE TESTS===");
+		Path dir = Files.createTempDirectory("blob-store-test");
+		BlobStore[] stores = { new InMemoryBlobStore(), new FileSystemBlobStore(dir) };
+		byte[] data = RandomStringUtils.randomAlphanumeric(100000).getBytes();
+		byte[] replacement = RandomStringUtils.randomAlphanumeric(5000).getBytes();
+		for (BlobStore store : stores) {
+			logger.info("Store: " + store.getClass().getSimpleName());
+			store.createBucket("bucket");
+			assertThrows(IOException.class, () -> store.createBucket("bucket"), "Bucket was created twice");
+
+			logger.info("Put and get");
+			assertTrue(store.put("bucket", "dir/object", "application/octet-stream", out -> {
+				out.write(data);
+				return true;
+			}), "Object was not stored");
+			assertArrayEquals(data, store.getAll("bucket", "dir/object"), "Stored object differs");
+			BlobStore.StoredObject object = store.stat("bucket", "dir/object");
+			assertEquals(data.length, object.size, "Stored object size is wrong");
+			assertNull(store.stat("bucket", "missing"), "Missing object was found");
+
+			logger.info("Failed writers leave nothing behind");
+			assertFalse(store.put("bucket", "failed", "application/octet-stream", out -> {
+				out.write(data);
+				return false;
+			}), "Failed writer was stored");
+			assertNull(store.stat("bucket", "failed"), "Failed writer left an object");
+			assertThrows(IOException.class, () -> store.put("bucket", "failed", "application/octet-stream", out -> {
+				throw new IOException("Writer failed");
+			}), "Writer exception was not thrown");
+			assertNull(store.stat("bucket", "failed"), "Failed writer left an object");
+
+			logger.info("Range reads");
+			try (BlobStore.Reader reader = store.open(object)) {
+				reader.seek(50000);
+				ByteBuffer buf = ByteBuffer.allocate(1000);
+				while (buf.hasRemaining() && reader.read(buf) >= 0) {
+				}
+				assertArrayEquals(Arrays.copyOfRange(data, 50000, 51000), buf.array(), "Range read differs");
+			}
+			ByteArrayOutputStream copied = new ByteArrayOutputStream();
+			store.copyTo(object, data.length - 3000, 3000, Channels.newChannel(copied));
+			assertArrayEquals(Arrays.copyOfRange(data, data.length - 3000, data.length), copied.toByteArray(), "Copied range differs");
+			assertThrows(IOException.class, () -> store.copyTo(object, data.length - 10, 20, Channels.newChannel(new ByteArrayOutputStream())),
+					"Range past the end was copied");
+
+			logger.info("Replacing an object changes its generation");
+			try (BlobStore.Reader reader = store.open(object)) {
+				store.put("bucket", "dir/object", "application/octet-stream", replacement);
+				BlobStore.StoredObject replaced = store.stat("bucket", "dir/object");
+				assertTrue(replaced.generation > object.generation, "Generation did not increase");
+				assertEquals(replacement.length, replaced.size, "Replaced object size is wrong");
+				assertArrayEquals(replacement, store.getAll("bucket", "dir/object"), "Replaced object differs");
+				assertThrows(IOException.class, () -> store.open(object).close(), "Replaced generation was opened");
+				// Readers opened before the object was replaced keep reading the old generation
+				ByteBuffer buf = ByteBuffer.allocate(100);
+				while (buf.hasRemaining() && reader.read(buf) >= 0) {
+				}
+				assertArrayEquals(Arrays.copyOf(data, 100), buf.array(), "Open reader did not read the old generation");
+			}
+
+			logger.info("Delete");
+			assertTrue(store.delete("bucket", "dir/object"), "Object was not deleted");
+			assertFalse(store.delete("bucket", "dir/object"), "Deleted object was deleted again");
+			assertNull(store.stat("bucket", "dir/object"), "Deleted object was found");
+			assertThrows(IOException.class, () -> store.getAll("bucket", "dir/object"), "Deleted object was read");
+		}
+		try (Stream<Path> files = Files.list(dir.resolve("bucket"))) {
+			assertTrue(files.noneMatch(file -> file.toString().endsWith(FileSystemBlobStore.TMP_SUFFIX)), "Temporary files were left behind");
+		}
+
+		logger.info("===BLOB STORE TESTS PASSED===\n");
+	}
+
 	@Test
 	void secretManagerTests(){
 		logger.info("===SECRET MANAGER TESTS===");